@@ -0,0 +1,99 @@
+package gjum.minecraft.mapsync.common.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Bytes per tile and encode/decode throughput of tile data version 3 against version 1,
+ * with plain zlib over version 1 as the reference for what compression alone gets.
+ * Reads real tiles: a directory of version 1 column data, one tile per file, e.g. exported from a sync server with
+ * `sqlite3 mapdata.db "select writefile(hex(hash) || '.bin', data) from chunk_data where version = 1"`.
+ * <p>
+ * Usage: TileEncodingBenchmark {tileDir} [seconds per measurement, default 5]
+ */
+public class TileEncodingBenchmark {
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TileEncodingBenchmark <tileDir> [seconds]");
+			System.exit(1);
+		}
+		final long durationNs = (long) ((args.length > 1 ? Double.parseDouble(args[1]) : 5) * 1e9);
+
+		final var tiles = new ArrayList<PackedColumns>();
+		final var packedTiles = new ArrayList<byte[]>();
+		try (Stream<Path> files = Files.list(Path.of(args[0]))) {
+			for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+				final byte[] packed = Files.readAllBytes(file);
+				tiles.add(PackedColumns.fromBuf(Unpooled.wrappedBuffer(packed)));
+				packedTiles.add(packed);
+			}
+		}
+		if (tiles.isEmpty()) throw new IllegalArgumentException("No tiles in " + args[0]);
+
+		long v1Bytes = 0, zlibBytes = 0, v3Bytes = 0;
+		final var v3Tiles = new ArrayList<byte[]>();
+		for (int i = 0; i < tiles.size(); i++) {
+			v1Bytes += packedTiles.get(i).length;
+			zlibBytes += deflate(packedTiles.get(i));
+			final byte[] v3 = ColumnCompression.compress(PaletteColumns.encode(tiles.get(i)));
+			v3Bytes += v3.length;
+			v3Tiles.add(v3);
+		}
+		System.out.printf("%d tiles%n", tiles.size());
+		System.out.printf("bytes per tile: v1 %.0f, v1+zlib %.0f, v3 %.0f (%.1f%% of v1)%n",
+				(double) v1Bytes / tiles.size(), (double) zlibBytes / tiles.size(), (double) v3Bytes / tiles.size(),
+				100.0 * v3Bytes / v1Bytes);
+
+		measure("encode v1", durationNs, tiles, tile -> {
+			final ByteBuf buf = Unpooled.buffer(4096);
+			tile.write(buf);
+			return buf.readableBytes();
+		});
+		measure("encode v3", durationNs, tiles, tile -> ColumnCompression.compress(PaletteColumns.encode(tile)).length);
+		measure("decode v1", durationNs, packedTiles, packed -> PackedColumns.fromBuf(Unpooled.wrappedBuffer(packed)).layerCount(0));
+		measure("decode v3", durationNs, v3Tiles, v3 -> PaletteColumns.decode(ColumnCompression.decompress(Unpooled.wrappedBuffer(v3))).layerCount(0));
+	}
+
+	private interface Op<T> {
+		int run(T input);
+	}
+
+	/**
+	 * runs for the duration once to warm up, then again to measure
+	 */
+	private static <T> void measure(String name, long durationNs, List<T> inputs, Op<T> op) {
+		long sink = 0;
+		for (int round = 0; round < 2; round++) {
+			long numOps = 0;
+			final long start = System.nanoTime();
+			long now = start;
+			while (now - start < durationNs) {
+				for (T input : inputs) sink += op.run(input);
+				numOps += inputs.size();
+				now = System.nanoTime();
+			}
+			if (round == 1) {
+				System.out.printf("%s: %.0f tiles/s (%d)%n", name, numOps * 1e9 / (now - start), sink & 1);
+			}
+		}
+	}
+
+	private static int deflate(byte[] bytes) {
+		final var deflater = new Deflater();
+		deflater.setInput(bytes);
+		deflater.finish();
+		final byte[] out = new byte[bytes.length + bytes.length / 100 + 64]; // more than deflate's worst case
+		int length = 0;
+		while (!deflater.finished()) length += deflater.deflate(out, length, out.length - length);
+		deflater.end();
+		return length;
+	}
+}
@@ -0,0 +1,80 @@
+package gjum.minecraft.mapsync.common.data;
+
+import io.netty.buffer.Unpooled;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Retained heap per tile of {@link PackedColumns} against the object per column and per layer that tiles used to be,
+ * measured with JOL on real tiles read from the same directory format as {@link TileEncodingBenchmark}.
+ * The old records are rebuilt here with the same fields; their Biome and BlockState were registry singletons
+ * shared by all tiles, so one shared object stands in for them and is not counted.
+ * Old tiles were built two ways: scanned ones grew a default ArrayList per column, received ones sized it exactly.
+ * <p>
+ * Usage: TileHeapBenchmark {tileDir}
+ */
+public class TileHeapBenchmark {
+	private static final Object SHARED = new Object();
+
+	private record OldBlockInfo(int y, Object state) {}
+
+	private record OldBlockColumn(Object biome, int light, List<OldBlockInfo> layers) {}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TileHeapBenchmark <tileDir>");
+			System.exit(1);
+		}
+
+		final var tiles = new ArrayList<PackedColumns>();
+		try (Stream<Path> files = Files.list(Path.of(args[0]))) {
+			for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+				tiles.add(PackedColumns.fromBuf(Unpooled.wrappedBuffer(Files.readAllBytes(file))));
+			}
+		}
+		if (tiles.isEmpty()) throw new IllegalArgumentException("No tiles in " + args[0]);
+
+		final long sharedSize = GraphLayout.parseInstance(SHARED).totalSize();
+		long layers = 0, packedSize = 0, packedCount = 0;
+		long scannedSize = 0, scannedCount = 0, receivedSize = 0, receivedCount = 0;
+		for (PackedColumns tile : tiles) {
+			for (int column = 0; column < PackedColumns.NUM_COLUMNS; column++) layers += tile.layerCount(column);
+
+			final var packed = GraphLayout.parseInstance(tile);
+			packedSize += packed.totalSize();
+			packedCount += packed.totalCount();
+
+			final var scanned = GraphLayout.parseInstance((Object) toOldColumns(tile, false));
+			scannedSize += scanned.totalSize() - sharedSize;
+			scannedCount += scanned.totalCount() - 1;
+
+			final var received = GraphLayout.parseInstance((Object) toOldColumns(tile, true));
+			receivedSize += received.totalSize() - sharedSize;
+			receivedCount += received.totalCount() - 1;
+		}
+		final int n = tiles.size();
+		System.out.printf("%d tiles, %.1f layers per column%n", n, (double) layers / n / PackedColumns.NUM_COLUMNS);
+		System.out.printf("old, scanned:  %.0f bytes, %.0f objects per tile%n", (double) scannedSize / n, (double) scannedCount / n);
+		System.out.printf("old, received: %.0f bytes, %.0f objects per tile%n", (double) receivedSize / n, (double) receivedCount / n);
+		System.out.printf("packed:        %.0f bytes, %.0f objects per tile%n", (double) packedSize / n, (double) packedCount / n);
+	}
+
+	private static OldBlockColumn[] toOldColumns(PackedColumns tile, boolean exactCapacity) {
+		final var columns = new OldBlockColumn[PackedColumns.NUM_COLUMNS];
+		for (int column = 0; column < PackedColumns.NUM_COLUMNS; column++) {
+			final int numLayers = tile.layerCount(column);
+			final var layers = exactCapacity ? new ArrayList<OldBlockInfo>(numLayers) : new ArrayList<OldBlockInfo>();
+			for (int layer = 0; layer < numLayers; layer++) {
+				layers.add(new OldBlockInfo(tile.layerY(column, layer), SHARED));
+			}
+			columns[column] = new OldBlockColumn(SHARED, tile.light(column), layers);
+		}
+		return columns;
+	}
+}
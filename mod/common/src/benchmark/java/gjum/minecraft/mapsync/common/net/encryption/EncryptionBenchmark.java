@@ -0,0 +1,60 @@
+package gjum.minecraft.mapsync.common.net.encryption;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Throughput of {@link EncryptionTranslator} in CFB8 and CTR mode, on a catchup-sized stream
+ * split into frames like the ones the sync server sends: encrypting into pooled direct buffers as
+ * {@link EncryptionEncoder} does, and decrypting in place as {@link EncryptionDecoder} does.
+ * <p>
+ * Usage: EncryptionBenchmark [stream MiB, default 16] [frame bytes, default 16384]
+ */
+public class EncryptionBenchmark {
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws ShortBufferException {
+		final int streamSize = (args.length > 0 ? Integer.parseInt(args[0]) : 16) * 1024 * 1024;
+		final int frameSize = args.length > 1 ? Integer.parseInt(args[1]) : 16384;
+
+		final byte[] secret = new byte[16];
+		ThreadLocalRandom.current().nextBytes(secret);
+		final SecretKey key = new SecretKeySpec(secret, "AES");
+
+		final ByteBuf frame = PooledByteBufAllocator.DEFAULT.heapBuffer(frameSize);
+		final byte[] frameBytes = new byte[frameSize];
+		ThreadLocalRandom.current().nextBytes(frameBytes);
+		frame.writeBytes(frameBytes);
+
+		System.out.printf("%d MiB in %d byte frames, best of %d%n", streamSize >> 20, frameSize, ROUNDS);
+		for (boolean useCtr : new boolean[]{false, true}) {
+			final String mode = useCtr ? "CTR " : "CFB8";
+			double bestEncrypt = 0, bestDecrypt = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				final var encrypter = new EncryptionTranslator(ConnectionCiphers.createEncryptCipher(key, useCtr));
+				final var decrypter = new EncryptionTranslator(ConnectionCiphers.createDecryptCipher(key, useCtr));
+				long encryptNs = 0, decryptNs = 0;
+				for (int done = 0; done < streamSize; done += frameSize) {
+					final ByteBuf out = PooledByteBufAllocator.DEFAULT.directBuffer(encrypter.getOutputSize(frameSize));
+					frame.readerIndex(0);
+					long start = System.nanoTime();
+					encrypter.encipher(frame, out);
+					encryptNs += System.nanoTime() - start;
+					start = System.nanoTime();
+					decrypter.decipherInPlace(out);
+					decryptNs += System.nanoTime() - start;
+					out.release();
+				}
+				bestEncrypt = Math.max(bestEncrypt, streamSize / (encryptNs / 1e9) / (1 << 20));
+				bestDecrypt = Math.max(bestDecrypt, streamSize / (decryptNs / 1e9) / (1 << 20));
+			}
+			System.out.printf("%s: encrypt %.0f MiB/s, decrypt %.0f MiB/s%n", mode, bestEncrypt, bestDecrypt);
+		}
+		frame.release();
+	}
+}
@@ -1,62 +1,59 @@
 package gjum.minecraft.mapsync.common;
 
 import gjum.minecraft.mapsync.common.data.*;
-import gjum.minecraft.mapsync.common.utils.Hasher;
-import io.netty.buffer.Unpooled;
-import net.minecraft.client.Minecraft;
-import net.minecraft.core.BlockPos;
-import net.minecraft.world.level.Level;
-import net.minecraft.world.level.LightLayer;
-import net.minecraft.world.level.chunk.LevelChunk;
-import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.core.Registry;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.block.state.BlockState;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
+import java.util.BitSet;
 
 public class Cartography {
-	public static ChunkTile chunkTileFromLevel(Level level, int cx, int cz) {
-		long timestamp = System.currentTimeMillis();
-		var dimension = level.dimension();
-		var chunk = level.getChunk(cx, cz);
+	/**
+	 * Runs off the mc thread; all world access goes through the snapshot.
+	 */
+	public static ChunkTile chunkTileFromSnapshot(ChunkSnapshot snapshot) {
+		return chunkTileFromSnapshot(snapshot, null, null);
+	}
 
-		var columns = new BlockColumn[256];
-		var pos = new BlockPos.MutableBlockPos(0, 0, 0);
-		int i = 0;
+	/**
+	 * @param previous       columns of an earlier tile of the same chunk, copied for all columns not in changedColumns;
+	 *                       null to scan all columns
+	 * @param changedColumns indexed x + 16 * z
+	 */
+	public static ChunkTile chunkTileFromSnapshot(ChunkSnapshot snapshot, @Nullable PackedColumns previous, @Nullable BitSet changedColumns) {
+		var biomeRegistry = snapshot.biomeRegistry();
+		var columnsBuilder = new PackedColumns.Builder();
 		for (int z = 0; z < 16; z++) {
 			for (int x = 0; x < 16; x++) {
-				pos.set(x, 0, z);
-				columns[i++] = blockColumnFromChunk(chunk, pos);
+				if (previous != null && changedColumns != null && !changedColumns.get(x + 16 * z)) {
+					columnsBuilder.copyColumn(previous, x + 16 * z);
+				} else {
+					scanColumn(snapshot, x, z, biomeRegistry, columnsBuilder);
+				}
 			}
 		}
-		int dataVersion = 1;
-
-		// TODO speedup: don't serialize twice (once here, once later when writing to network)
-		var columnsBuf = Unpooled.buffer();
-		ChunkTile.writeColumns(columns, columnsBuf);
-		final byte[] dataHash = Hasher.sha1()
-				.update(columnsBuf)
-				.generateHash();
-
-		return new ChunkTile(dimension, cx, cz, timestamp, dataVersion, dataHash, columns);
+		return ChunkTile.fromColumns(snapshot.dimension(), snapshot.x(), snapshot.z(), snapshot.timestamp(),
+				columnsBuilder.build());
 	}
 
-	public static BlockColumn blockColumnFromChunk(LevelChunk chunk, BlockPos.MutableBlockPos pos) {
-		var layers = new ArrayList<BlockInfo>();
-		int y = chunk.getHeight(Heightmap.Types.WORLD_SURFACE, pos.getX(), pos.getZ());
-		int minBuildHeight = chunk.getLevel().getMinBuildHeight();
-		pos.setY(y);
-		var bs = chunk.getBlockState(pos);
+	/**
+	 * adds the column's layers to the builder, then ends the column
+	 */
+	public static void scanColumn(ChunkSnapshot snapshot, int x, int z, Registry<Biome> biomeRegistry, PackedColumns.Builder builder) {
+		int y = snapshot.getHeight(x, z);
+		int minBuildHeight = snapshot.minBuildHeight();
+		BlockState bs = snapshot.getBlockState(x, y, z);
 		do {
-			layers.add(new BlockInfo(pos.getY(), bs));
+			builder.addLayer(y, bs);
 			if (bs.getMaterial().isSolidBlocking()) break;
 			var prevBS = bs;
 			do {
-				pos.setY(--y);
-				bs = chunk.getBlockState(pos);
+				bs = snapshot.getBlockState(x, --y, z);
 			} while ((bs == prevBS || bs.isAir()) && y >= -4096);
 		} while (y >= minBuildHeight);
-		var world = Minecraft.getInstance().level;
-		int light = world.getBrightness(LightLayer.BLOCK, pos);
-		var biome = chunk.getNoiseBiome(pos.getX() >> 2, pos.getY() >> 2, pos.getZ() >> 2).value();
-		return new BlockColumn(biome, light, layers);
+		int light = snapshot.getBlockLight(x, y, z);
+		var biome = snapshot.getNoiseBiome(x >> 2, y >> 2, z >> 2);
+		builder.endColumn(biomeRegistry.getId(biome), light);
 	}
 }
@@ -0,0 +1,487 @@
+package gjum.minecraft.mapsync.common;
+
+import gjum.minecraft.mapsync.common.data.CatchupChunks;
+import gjum.minecraft.mapsync.common.net.CatchupWindow;
+import gjum.minecraft.mapsync.common.net.SyncClient;
+import it.unimi.dsi.fastutil.ints.IntArrayFIFOQueue;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntComparator;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongUnaryOperator;
+import java.util.function.ToIntFunction;
+
+/**
+ * The catchup chunks of a dimension that weren't received yet.
+ * Chunks near the player come first, nearest first; then all others, newest first.
+ * Both orders are kept in heaps, so taking the next chunk is logarithmic in the backlog size.
+ * Chunks are also indexed by cells of 16×16 chunks, so when the player has moved,
+ * only the cells around them are visited to find the nearby chunks again.
+ * <p>
+ * Each chunk is in here once, even when several sync servers listed it, with the newest timestamp any of them has.
+ * It's requested from whichever of the servers that have that version is expected to deliver it soonest
+ * (see {@link CatchupWindow#getExpectedDelayNs()}), and stays in here until it is received.
+ * If the request times out, the chunk is queued again for the other servers that have it.
+ * The {@link CatchupWindow} of the server a chunk was requested from is told when it arrives, times out, or is superseded.
+ * <p>
+ * There can be a whole world's worth of chunks in here, so they are stored in primitive arrays, indexed by entry number,
+ * and the heaps and cells only hold entry numbers. Entries of chunks that were received are reused.
+ * Sync servers are referred to by their index in {@link #sources}. When one disconnects, it's removed from all entries
+ * and its index is reused; it lists its chunks again when it's back.
+ * Not thread-safe; {@link CatchupLogic} guards it.
+ */
+class CatchupBacklog {
+	private static final int CELL_SHIFT = 4;
+	private static final int INITIAL_CAPACITY = 1024;
+	/**
+	 * limits the work per poll when the next chunks are all for sync servers that got their amount already
+	 */
+	private static final int MAX_SKIPPED_PER_POLL = 4096;
+	/**
+	 * one bit per source in {@link #sourceMasks}
+	 */
+	private static final int MAX_SOURCES = 64;
+	private static final byte NOT_REQUESTED = -1;
+	static final int ABSENT = -1;
+
+	private final ResourceKey<Level> dimension;
+	private final int nearbyDistance;
+	private final int nearbyDistanceSq;
+
+	/**
+	 * null where a source was removed; the next new one takes its place
+	 */
+	private final ArrayList<SyncClient> sources = new ArrayList<>();
+
+	/**
+	 * {@link ChunkPos#toLong()}
+	 */
+	private long[] chunkPositions = new long[INITIAL_CAPACITY];
+	private long[] timestamps = new long[INITIAL_CAPACITY];
+	/**
+	 * which sources have the chunk at that timestamp, one bit per source index
+	 */
+	private long[] sourceMasks = new long[INITIAL_CAPACITY];
+	/**
+	 * source index, or {@link #NOT_REQUESTED} while queued in the heaps
+	 */
+	private byte[] requestedFrom = new byte[INITIAL_CAPACITY];
+	/**
+	 * {@link System#nanoTime()}
+	 */
+	private long[] requestedAt = new long[INITIAL_CAPACITY];
+	/**
+	 * position in its cell's list, so it can be removed from there in constant time
+	 */
+	private int[] indicesInCell = new int[INITIAL_CAPACITY];
+	/**
+	 * all entries below this are either in use or in {@link #freeEntries}
+	 */
+	private int numEntriesUsed = 0;
+	private final IntArrayList freeEntries = new IntArrayList();
+	private final Long2IntOpenHashMap entriesByChunk = new Long2IntOpenHashMap();
+
+	/**
+	 * by source index: entries requested from that source, and when, in the order they were requested;
+	 * entries that were received since are skipped. Separate per source, because each times out after its own round trip.
+	 */
+	private final IntArrayFIFOQueue[] requestedEntries = new IntArrayFIFOQueue[MAX_SOURCES];
+	private final LongArrayFIFOQueue[] requestedTimes = new LongArrayFIFOQueue[MAX_SOURCES];
+
+	/**
+	 * where the player was when the nearby chunks were last collected; null until the first poll
+	 */
+	private @Nullable ChunkPos center = null;
+
+	private final Long2ObjectOpenHashMap<IntArrayList> cells = new Long2ObjectOpenHashMap<>();
+	private final EntryHeap newestFirst = new EntryHeap((a, b) -> Long.compare(timestamps[b], timestamps[a]));
+	/**
+	 * only the queued chunks near {@link #center}
+	 */
+	private final EntryHeap nearestFirst = new EntryHeap((a, b) -> Integer.compare(distanceSqToCenter(a), distanceSqToCenter(b)));
+
+	/**
+	 * @param nearbyDistance chunk distance from the player within which chunks are requested nearest first
+	 */
+	CatchupBacklog(@NotNull ResourceKey<Level> dimension, int nearbyDistance) {
+		this.dimension = dimension;
+		this.nearbyDistance = nearbyDistance;
+		this.nearbyDistanceSq = nearbyDistance * nearbyDistance;
+		entriesByChunk.defaultReturnValue(ABSENT);
+		for (int i = 0; i < MAX_SOURCES; i++) {
+			requestedEntries[i] = new IntArrayFIFOQueue();
+			requestedTimes[i] = new LongArrayFIFOQueue();
+		}
+	}
+
+	/**
+	 * queued and requested chunks
+	 */
+	int size() {
+		return entriesByChunk.size();
+	}
+
+	/**
+	 * for {@link #add(long, long, int)}
+	 *
+	 * @return {@link #ABSENT} if there are too many sources already
+	 */
+	int getSourceIndex(@NotNull SyncClient source) {
+		int index = sources.indexOf(source);
+		if (index >= 0) return index;
+		index = sources.indexOf(null);
+		if (index >= 0) {
+			sources.set(index, source);
+			return index;
+		}
+		if (sources.size() >= MAX_SOURCES) return ABSENT;
+		sources.add(source);
+		return sources.size() - 1;
+	}
+
+	/**
+	 * The source won't deliver anything anymore. Chunks requested from it are queued again for the others that have them,
+	 * and chunks no other source has are forgotten.
+	 */
+	void removeSource(@NotNull SyncClient source) {
+		final int sourceIndex = sources.indexOf(source);
+		if (sourceIndex < 0) return;
+		final long bit = 1L << sourceIndex;
+		for (int entry : entriesByChunk.values().toIntArray()) {
+			if ((sourceMasks[entry] & bit) == 0) continue;
+			sourceMasks[entry] &= ~bit;
+			final boolean wasRequested = requestedFrom[entry] == sourceIndex;
+			if (wasRequested) source.getCatchupWindow().onChunkCancelled();
+			if (sourceMasks[entry] == 0) {
+				remove(entry);
+			} else if (wasRequested) {
+				enqueue(entry);
+			}
+		}
+		requestedEntries[sourceIndex].clear();
+		requestedTimes[sourceIndex].clear();
+		sources.set(sourceIndex, null);
+	}
+
+	/**
+	 * Merges with the chunk's entry if there is one: a newer timestamp replaces it, an older one is ignored.
+	 *
+	 * @param chunkPos {@link ChunkPos#toLong()}
+	 */
+	void add(long chunkPos, long timestamp, int sourceIndex) {
+		int entry = entriesByChunk.get(chunkPos);
+		if (entry != ABSENT) {
+			if (timestamp < timestamps[entry]) return;
+			if (timestamp == timestamps[entry]) {
+				sourceMasks[entry] |= 1L << sourceIndex;
+				return;
+			}
+			// newer than what's queued or on its way
+			if (requestedFrom[entry] != NOT_REQUESTED) sources.get(requestedFrom[entry]).getCatchupWindow().onChunkCancelled();
+			dequeue(entry);
+		} else {
+			entry = allocateEntry();
+			chunkPositions[entry] = chunkPos;
+			entriesByChunk.put(chunkPos, entry);
+			final var cell = cells.computeIfAbsent(cellKey(chunkPos), k -> new IntArrayList());
+			indicesInCell[entry] = cell.size();
+			cell.add(entry);
+		}
+		timestamps[entry] = timestamp;
+		sourceMasks[entry] = 1L << sourceIndex;
+		enqueue(entry);
+	}
+
+	/**
+	 * Forgets the chunk if that's the version we were waiting for, or newer.
+	 *
+	 * @param chunkPos {@link ChunkPos#toLong()}
+	 */
+	void onChunkReceived(long chunkPos, long timestamp) {
+		final int entry = entriesByChunk.get(chunkPos);
+		if (entry == ABSENT || timestamp < timestamps[entry]) return;
+		if (requestedFrom[entry] != NOT_REQUESTED) {
+			sources.get(requestedFrom[entry]).getCatchupWindow().onChunkReceived(requestedAt[entry]);
+		}
+		remove(entry);
+	}
+
+	/**
+	 * Removes chunks from the queue, and remembers them as requested:
+	 * those near the player first, nearest first, then the newest.
+	 * A chunk whose sync servers all got their amount already is left in for later.
+	 * Requests that timed out are queued again first, without the server that didn't answer.
+	 *
+	 * @param amounts         how many chunks to request per sync server
+	 * @param localTimestamps our timestamp of a chunk by {@link ChunkPos#toLong()};
+	 *                        chunks older than that are removed but not returned
+	 * @return the chunks to request, by the sync server to request them from
+	 */
+	@NotNull Map<SyncClient, CatchupChunks> poll(@NotNull ChunkPos playerPos, @NotNull ToIntFunction<SyncClient> amounts, @NotNull LongUnaryOperator localTimestamps) {
+		final long now = System.nanoTime();
+		requeueTimedOut(now, localTimestamps);
+
+		final var chunksBySource = new HashMap<SyncClient, CatchupChunks>();
+		final int[] remainingAmounts = new int[sources.size()];
+		final double[] expectedDelays = new double[sources.size()];
+		int remainingAmount = 0;
+		for (int i = 0; i < sources.size(); i++) {
+			final var source = sources.get(i);
+			if (source == null) continue;
+			remainingAmounts[i] = Math.max(0, amounts.applyAsInt(source));
+			remainingAmount += remainingAmounts[i];
+			expectedDelays[i] = source.getCatchupWindow().getExpectedDelayNs();
+		}
+		if (remainingAmount == 0) return chunksBySource;
+
+		if (!playerPos.equals(center)) recenter(playerPos);
+		// taken out of the heaps while looking for chunks of other sync servers, and put back in at the end
+		final var skipped = new IntArrayList();
+		while (remainingAmount > 0 && !newestFirst.isEmpty() && skipped.size() < MAX_SKIPPED_PER_POLL) {
+			final int entry = nearestFirst.isEmpty() ? newestFirst.peek() : nearestFirst.peek();
+			dequeue(entry);
+			final int sourceIndex = pickSource(sourceMasks[entry], remainingAmounts, expectedDelays);
+			if (sourceIndex == ABSENT) {
+				skipped.add(entry);
+				continue;
+			}
+			final long chunkPos = chunkPositions[entry];
+			final long timestamp = timestamps[entry];
+			if (timestamp < localTimestamps.applyAsLong(chunkPos)) { // outdated
+				remove(entry);
+				continue;
+			}
+			requestedFrom[entry] = (byte) sourceIndex;
+			requestedAt[entry] = now;
+			requestedEntries[sourceIndex].enqueue(entry);
+			requestedTimes[sourceIndex].enqueue(now);
+			final int amount = remainingAmounts[sourceIndex];
+			chunksBySource.computeIfAbsent(sources.get(sourceIndex), s -> new CatchupChunks(dimension, amount))
+					.add(chunkPos, timestamp);
+			remainingAmounts[sourceIndex]--;
+			remainingAmount--;
+		}
+		for (int i = 0; i < skipped.size(); i++) {
+			enqueue(skipped.getInt(i));
+		}
+		return chunksBySource;
+	}
+
+	/**
+	 * @return the source with the lowest expected delay among those in the mask that can take more, or {@link #ABSENT}
+	 */
+	private static int pickSource(long sourceMask, int[] remainingAmounts, double[] expectedDelays) {
+		int best = ABSENT;
+		for (long mask = sourceMask; mask != 0; mask &= mask - 1) {
+			final int sourceIndex = Long.numberOfTrailingZeros(mask);
+			if (sourceIndex >= remainingAmounts.length || remainingAmounts[sourceIndex] == 0) continue;
+			if (best == ABSENT || expectedDelays[sourceIndex] < expectedDelays[best]) best = sourceIndex;
+		}
+		return best;
+	}
+
+	private void requeueTimedOut(long now, LongUnaryOperator localTimestamps) {
+		for (int sourceIndex = 0; sourceIndex < sources.size(); sourceIndex++) {
+			final var source = sources.get(sourceIndex);
+			if (source == null) continue;
+			final var window = source.getCatchupWindow();
+			final long timeoutNs = window.getTimeoutNs();
+			final var entries = requestedEntries[sourceIndex];
+			final var times = requestedTimes[sourceIndex];
+			while (!entries.isEmpty()) {
+				final int entry = entries.firstInt();
+				final long time = times.firstLong();
+				// received since (and maybe reused), merged with a newer version, or timed out and requested from another source
+				final boolean isStale = requestedFrom[entry] != sourceIndex || requestedAt[entry] != time;
+				if (!isStale && now - time <= timeoutNs) break;
+				entries.dequeueInt();
+				times.dequeueLong();
+				if (isStale) continue;
+
+				window.onChunkTimedOut();
+				sourceMasks[entry] &= ~(1L << sourceIndex);
+				requestedFrom[entry] = NOT_REQUESTED;
+				if (sourceMasks[entry] == 0 || timestamps[entry] < localTimestamps.applyAsLong(chunkPositions[entry])) {
+					remove(entry); // no other server has it, or we got it some other way
+				} else {
+					enqueue(entry);
+				}
+			}
+		}
+	}
+
+	private void enqueue(int entry) {
+		requestedFrom[entry] = NOT_REQUESTED;
+		newestFirst.add(entry);
+		if (center != null && distanceSqToCenter(entry) < nearbyDistanceSq) nearestFirst.add(entry);
+	}
+
+	private void dequeue(int entry) {
+		newestFirst.remove(entry);
+		nearestFirst.remove(entry);
+	}
+
+	private int allocateEntry() {
+		if (!freeEntries.isEmpty()) return freeEntries.popInt();
+		if (numEntriesUsed == chunkPositions.length) {
+			final int capacity = chunkPositions.length * 2;
+			chunkPositions = Arrays.copyOf(chunkPositions, capacity);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			sourceMasks = Arrays.copyOf(sourceMasks, capacity);
+			requestedFrom = Arrays.copyOf(requestedFrom, capacity);
+			requestedAt = Arrays.copyOf(requestedAt, capacity);
+			indicesInCell = Arrays.copyOf(indicesInCell, capacity);
+			newestFirst.grow(capacity);
+			nearestFirst.grow(capacity);
+		}
+		return numEntriesUsed++;
+	}
+
+	private void remove(int entry) {
+		dequeue(entry);
+		requestedFrom[entry] = NOT_REQUESTED;
+		entriesByChunk.remove(chunkPositions[entry]);
+		final long cellKey = cellKey(chunkPositions[entry]);
+		final var cell = cells.get(cellKey);
+		// move the last one into the gap
+		final int last = cell.popInt();
+		if (last != entry) {
+			cell.set(indicesInCell[entry], last);
+			indicesInCell[last] = indicesInCell[entry];
+		}
+		if (cell.isEmpty()) cells.remove(cellKey);
+		freeEntries.add(entry);
+	}
+
+	/**
+	 * collects the queued chunks near the new center from the cells around it
+	 */
+	private void recenter(ChunkPos newCenter) {
+		nearestFirst.clear();
+		center = newCenter;
+		final int minCellX = (newCenter.x - nearbyDistance) >> CELL_SHIFT;
+		final int maxCellX = (newCenter.x + nearbyDistance) >> CELL_SHIFT;
+		final int minCellZ = (newCenter.z - nearbyDistance) >> CELL_SHIFT;
+		final int maxCellZ = (newCenter.z + nearbyDistance) >> CELL_SHIFT;
+		for (int cellX = minCellX; cellX <= maxCellX; cellX++) {
+			for (int cellZ = minCellZ; cellZ <= maxCellZ; cellZ++) {
+				final var cell = cells.get(ChunkPos.asLong(cellX, cellZ));
+				if (cell == null) continue;
+				for (int i = 0; i < cell.size(); i++) {
+					final int entry = cell.getInt(i);
+					if (!newestFirst.contains(entry)) continue; // requested already
+					if (distanceSqToCenter(entry) < nearbyDistanceSq) nearestFirst.add(entry);
+				}
+			}
+		}
+	}
+
+	private int distanceSqToCenter(int entry) {
+		final int dx = ChunkPos.getX(chunkPositions[entry]) - center.x;
+		final int dz = ChunkPos.getZ(chunkPositions[entry]) - center.z;
+		return dx * dx + dz * dz;
+	}
+
+	private static long cellKey(long chunkPos) {
+		return ChunkPos.asLong(ChunkPos.getX(chunkPos) >> CELL_SHIFT, ChunkPos.getZ(chunkPos) >> CELL_SHIFT);
+	}
+
+	/**
+	 * binary min-heap of entry numbers, which also knows where each entry is in it, so any entry can be removed
+	 */
+	private static final class EntryHeap {
+		private final IntComparator order;
+		private int[] heap = new int[INITIAL_CAPACITY];
+		/**
+		 * index in {@link #heap} by entry number
+		 */
+		private int[] heapIndices = new int[INITIAL_CAPACITY];
+		private int size = 0;
+
+		EntryHeap(IntComparator order) {
+			this.order = order;
+			Arrays.fill(heapIndices, ABSENT);
+		}
+
+		void grow(int capacity) {
+			final int oldCapacity = heapIndices.length;
+			heap = Arrays.copyOf(heap, capacity);
+			heapIndices = Arrays.copyOf(heapIndices, capacity);
+			Arrays.fill(heapIndices, oldCapacity, capacity, ABSENT);
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		boolean contains(int entry) {
+			return heapIndices[entry] != ABSENT;
+		}
+
+		int peek() {
+			return heap[0];
+		}
+
+		void add(int entry) {
+			siftUp(size++, entry);
+		}
+
+		void remove(int entry) {
+			final int index = heapIndices[entry];
+			if (index == ABSENT) return;
+			heapIndices[entry] = ABSENT;
+			size--;
+			if (index == size) return;
+			final int last = heap[size];
+			siftDown(index, last);
+			if (heap[index] == last) siftUp(index, last);
+		}
+
+		void clear() {
+			for (int i = 0; i < size; i++) {
+				heapIndices[heap[i]] = ABSENT;
+			}
+			size = 0;
+		}
+
+		private void siftUp(int index, int entry) {
+			while (index > 0) {
+				final int parentIndex = (index - 1) >>> 1;
+				final int parent = heap[parentIndex];
+				if (order.compare(entry, parent) >= 0) break;
+				place(index, parent);
+				index = parentIndex;
+			}
+			place(index, entry);
+		}
+
+		private void siftDown(int index, int entry) {
+			while (true) {
+				int childIndex = 2 * index + 1;
+				if (childIndex >= size) break;
+				if (childIndex + 1 < size && order.compare(heap[childIndex + 1], heap[childIndex]) < 0) childIndex++;
+				final int child = heap[childIndex];
+				if (order.compare(child, entry) >= 0) break;
+				place(index, child);
+				index = childIndex;
+			}
+			place(index, entry);
+		}
+
+		private void place(int index, int entry) {
+			heap[index] = entry;
+			heapIndices[entry] = index;
+		}
+	}
+}
@@ -1,122 +1,135 @@
 package gjum.minecraft.mapsync.common;
 
-import gjum.minecraft.mapsync.common.data.CatchupChunk;
+import gjum.minecraft.mapsync.common.data.CatchupChunks;
 import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.net.SyncClient;
 import net.minecraft.client.Minecraft;
 import net.minecraft.world.entity.player.Player;
 import net.minecraft.world.level.ChunkPos;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.*;
+import java.util.function.ToIntFunction;
 
 import static gjum.minecraft.mapsync.common.MapSyncMod.*;
 
 public class CatchupLogic {
-	int nearbyDistance = 20; // chunk distance from player to prioritize in requests
+	final int nearbyDistance = 20; // chunk distance from player to prioritize in requests
 
 	private final DimensionState dimensionState;
 
+	private final CatchupBacklog backlog;
+
 	/**
-	 * sorted by newest to oldest; nearby chunks may come first and be sorted by distance to player
+	 * how many seconds of rendering may be queued before no more catchup is requested
 	 */
-	private final List<CatchupChunk> catchupChunks = new ArrayList<>();
+	private static final double MAX_RENDER_QUEUE_SEC = 2;
+	private static final int MIN_MAX_RENDER_QUEUE_SIZE = 100;
 
-	private final long beginLiveTs = System.currentTimeMillis();
-	private long tsRequestMore = 0;
+	/**
+	 * smoothed time to render a chunk, measured while the render queue isn't empty; -1 until measured
+	 */
+	private double renderIntervalNs = -1;
+	private long lastRenderDoneAt = 0;
+	private boolean isRenderBusy = false;
 
 	public CatchupLogic(DimensionState dimensionState) {
 		this.dimensionState = dimensionState;
+		backlog = new CatchupBacklog(dimensionState.dimension, nearbyDistance);
 	}
 
-	public void addCatchupChunks(List<CatchupChunk> catchupChunks) {
-		if (catchupChunks.isEmpty()) return;
-		var catchupDim = catchupChunks.get(0).dimension();
+	public void addCatchupChunks(CatchupChunks catchupChunks, SyncClient source) {
+		if (catchupChunks.size() == 0) return;
+		var catchupDim = catchupChunks.dimension;
 		if (!dimensionState.dimension.equals(catchupDim)) {
 			logger.warn("Catchup chunks from wrong dimension " + catchupDim + ", expected " + dimensionState.dimension);
 			return;
 		}
-		synchronized (this.catchupChunks) {
-			for (CatchupChunk chunk : catchupChunks) {
+		synchronized (backlog) {
+			final int sourceIndex = backlog.getSourceIndex(source);
+			if (sourceIndex == CatchupBacklog.ABSENT) {
+				logger.warn("[map-sync] Too many sync servers, ignoring catchup chunks from " + source.address);
+				return;
+			}
+			int numAdded = 0;
+			for (int i = 0; i < catchupChunks.size(); i++) {
+				final long chunkPos = catchupChunks.chunkPos(i);
+				final long timestamp = catchupChunks.timestamp(i);
 				// only include catchup chunks that are newer than the corresponding chunk we have locally
-				var current_timestamp = dimensionState.getChunkTimestamp(chunk.chunkPos());
-				debugLog("COMPARING " + (current_timestamp < chunk.timestamp()) + " for " + chunk.chunk_x() + " " + chunk.chunk_z());
-				if (current_timestamp < chunk.timestamp()) {
-					this.catchupChunks.add(chunk);
+				if (dimensionState.getChunkTimestamp(chunkPos) < timestamp) {
+					backlog.add(chunkPos, timestamp, sourceIndex);
+					numAdded++;
 				}
 			}
-			debugLog("now have " + this.catchupChunks.size() + " catchup chunks");
+			debugLog("added " + numAdded + " of " + catchupChunks.size() + " catchup chunks, now have " + backlog.size());
 		}
 		maybeRequestMoreCatchup();
 	}
 
-	public synchronized void handleSharedChunkReceived(@NotNull ChunkTile chunkTile) {
-		if (chunkTile.timestamp() < beginLiveTs) {
-			// assume received chunk is catchup chunk
-			// wait a bit to allow more catchup chunks to come in before requesting more
-			tsRequestMore = System.currentTimeMillis() + 100;
+	/**
+	 * its catchup chunks are requested from the other sync servers that have them, if any
+	 */
+	public void handleSyncServerDisconnected(@NotNull SyncClient client) {
+		synchronized (backlog) {
+			backlog.removeSource(client);
+		}
+	}
+
+	/**
+	 * no need to request it (again) from any sync server
+	 */
+	public void handleSharedChunkReceived(@NotNull ChunkTile chunkTile) {
+		synchronized (backlog) {
+			backlog.onChunkReceived(chunkTile.chunkPos().toLong(), chunkTile.timestamp());
+		}
+	}
+
+	synchronized void handleChunkRendered() {
+		long now = System.nanoTime();
+		// only while there was more to render, so this measures rendering and not how fast chunks come in
+		if (isRenderBusy) {
+			long interval = now - lastRenderDoneAt;
+			renderIntervalNs = renderIntervalNs < 0 ? interval : renderIntervalNs + (interval - renderIntervalNs) / 8;
 		}
+		lastRenderDoneAt = now;
+		isRenderBusy = dimensionState.getRenderQueueSize() > 0;
 	}
 
+	/**
+	 * Each sync server gets as many requests as its {@link gjum.minecraft.mapsync.common.net.CatchupWindow} allows,
+	 * unless rendering can't keep up with what was received already; then their windows shrink instead.
+	 */
 	synchronized void maybeRequestMoreCatchup() {
-		int WATERMARK_REQUEST_MORE = MapSyncMod.modConfig.getCatchupWatermark();
-		long now = System.currentTimeMillis();
-		if (tsRequestMore > now) return;
-		int queueSize = dimensionState.getRenderQueueSize();
-		if (queueSize < WATERMARK_REQUEST_MORE) {
-			// before requesting more, wait for a catchup chunk to be received (see renderLater());
-			// if none get received within a second (all outdated etc.) then request more anyway
-			tsRequestMore = now + 1000;
-			var chunksToRequest = pollCatchupChunks(WATERMARK_REQUEST_MORE);
-			getMod().requestCatchupData(chunksToRequest);
+		if (dimensionState.getRenderQueueSize() > getMaxRenderQueueSize()) {
+			for (SyncClient client : getMod().getSyncClients()) {
+				client.getCatchupWindow().onCongestion();
+			}
+			return;
 		}
+		// chunks for disconnected sync servers go to the others that have them, if any
+		var chunksToRequest = pollCatchupChunks(client ->
+				client.isEncrypted() && !client.isShutDown ? client.getCatchupWindow().getRequestSize() : 0);
+		getMod().requestCatchupData(chunksToRequest);
+	}
+
+	private int getMaxRenderQueueSize() {
+		if (renderIntervalNs <= 0) return MIN_MAX_RENDER_QUEUE_SIZE;
+		return (int) Math.max(MIN_MAX_RENDER_QUEUE_SIZE, MAX_RENDER_QUEUE_SEC * 1e9 / renderIntervalNs);
 	}
 
 	/**
-	 * Removes and returns up to `amount` chunks from `catchupChunks`.
-	 * Prioritizes nearby chunks (up to 32 chunks euclidean from player), then newest chunks.
+	 * Picks up to `amounts` chunks per sync server to request next; they stay in the backlog until received.
+	 * Prioritizes nearby chunks (up to {@link #nearbyDistance} chunks euclidean from player), then newest chunks.
+	 * Chunks that got outdated since they were added are dropped as they come up.
 	 */
-	private @NotNull List<CatchupChunk> pollCatchupChunks(int amount) {
+	private @NotNull Map<SyncClient, CatchupChunks> pollCatchupChunks(ToIntFunction<SyncClient> amounts) {
 		Player player = Minecraft.getInstance().player;
-		if (player == null) return Collections.emptyList();
+		if (player == null) return Collections.emptyMap();
 		ChunkPos playerPos = player.chunkPosition();
 
-		synchronized (catchupChunks) {
-			if (catchupChunks.isEmpty()) return Collections.emptyList();
-			// remove outdated chunks,
-			// prioritise nearby chunks
-			// by filtering into two lists and dropping outdated chunks, we can just use the two lists below to replace catchupChunks
-			final List<CatchupChunk> nearbyChunks = new ArrayList<>();
-			final List<CatchupChunk> farChunks = new ArrayList<>();
-			int nearbySq = nearbyDistance * nearbyDistance;
-			for (CatchupChunk chunk : catchupChunks) {
-				var current_timestamp = dimensionState.getChunkTimestamp(chunk.chunkPos());
-				if (chunk.timestamp() < current_timestamp) continue; // outdated
-
-				int dsq = chunk.getDistanceSq(playerPos);
-				if (dsq < nearbySq) nearbyChunks.add(chunk);
-				else farChunks.add(chunk);
-			}
-			// request nearest first, furthest last
-			nearbyChunks.sort(Comparator.comparing((CatchupChunk c) ->
-					c.getDistanceSq(playerPos)));
-			// there may be too many chunks nearby; limit to amount
-			if (nearbyChunks.size() > amount) {
-				List<CatchupChunk> chunksToRequest = nearbyChunks.subList(0, amount);
-				// all leftovers go back into catchupChunks for future requests
-				// NOTE: nearbyChunks is sorted by distance to player, not timestamp; but that's fine because those will probably be in our next request anyway
-				catchupChunks.clear();
-				catchupChunks.addAll(nearbyChunks.subList(amount, nearbyChunks.size()));
-				catchupChunks.addAll(farChunks);
-				return chunksToRequest;
-			}
-			// request nearbyChunks, then add remaining from farChunks (still sorted new to old)
-			final List<CatchupChunk> chunksToRequest = nearbyChunks;
-			amount -= nearbyChunks.size();
-			chunksToRequest.addAll(farChunks.subList(0, Math.min(amount, farChunks.size())));
-			// all leftovers go back into catchupChunks for future requests
-			catchupChunks.clear();
-			if (amount < farChunks.size()) catchupChunks.addAll(farChunks.subList(amount, farChunks.size()));
-			return chunksToRequest;
+		synchronized (backlog) {
+			if (backlog.size() == 0) return Collections.emptyMap();
+			return backlog.poll(playerPos, amounts, dimensionState::getChunkTimestamp);
 		}
 	}
 }
@@ -0,0 +1,91 @@
+package gjum.minecraft.mapsync.common;
+
+import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.data.PackedColumns;
+import net.minecraft.core.BlockPos;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Collects block changes in loaded chunks, so each chunk is rescanned once it has stopped changing,
+ * and only in the columns that changed. The other columns are taken from the chunk's previous tile.
+ */
+public class ChunkChangeTracker {
+	/**
+	 * rescan a chunk this long after its last change
+	 */
+	private static final long SETTLE_MS = 1000;
+	/**
+	 * roughly the number of chunks loaded at 32 render distance
+	 */
+	private static final int MAX_REMEMBERED_TILES = 4096;
+
+	private final HashMap<ChunkPos, ChangedChunk> changedChunks = new HashMap<>();
+
+	/**
+	 * columns of the latest tile scanned from each chunk; access-ordered, so unloaded chunks drop out eventually
+	 */
+	private final LinkedHashMap<ChunkPos, PackedColumns> scannedColumns = new LinkedHashMap<>(16, .75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ChunkPos, PackedColumns> eldest) {
+			return size() > MAX_REMEMBERED_TILES;
+		}
+	};
+
+	public synchronized void markColumnChanged(@NotNull BlockPos pos) {
+		var chunk = changedChunks.computeIfAbsent(new ChunkPos(pos), p -> new ChangedChunk(new BitSet(PackedColumns.NUM_COLUMNS)));
+		chunk.columns.set((pos.getX() & 0xf) + 16 * (pos.getZ() & 0xf));
+		chunk.lastChangeMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * the chunk is about to be scanned in full anyway
+	 */
+	public synchronized void clearChanges(@NotNull ChunkPos chunkPos) {
+		changedChunks.remove(chunkPos);
+	}
+
+	/**
+	 * Removes and returns the chunks that haven't changed for {@link #SETTLE_MS}, with their changed columns.
+	 */
+	public synchronized @NotNull Map<ChunkPos, BitSet> pollSettledChanges() {
+		if (changedChunks.isEmpty()) return Collections.emptyMap();
+		long settledBefore = System.currentTimeMillis() - SETTLE_MS;
+		var settled = new HashMap<ChunkPos, BitSet>();
+		var it = changedChunks.entrySet().iterator();
+		while (it.hasNext()) {
+			var entry = it.next();
+			if (entry.getValue().lastChangeMs > settledBefore) continue;
+			settled.put(entry.getKey(), entry.getValue().columns);
+			it.remove();
+		}
+		return settled;
+	}
+
+	public synchronized int getNumChangedChunks() {
+		return changedChunks.size();
+	}
+
+	public synchronized @Nullable PackedColumns getScannedColumns(@NotNull ChunkPos chunkPos) {
+		return scannedColumns.get(chunkPos);
+	}
+
+	/**
+	 * called on the scanner threads
+	 */
+	public synchronized void onTileScanned(@NotNull ChunkTile chunkTile) {
+		scannedColumns.put(chunkTile.chunkPos(), chunkTile.columns());
+	}
+
+	private static class ChangedChunk {
+		final BitSet columns;
+		long lastChangeMs;
+
+		ChangedChunk(BitSet columns) {
+			this.columns = columns;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package gjum.minecraft.mapsync.common;
+
+import gjum.minecraft.mapsync.common.data.RegionDigests;
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * The fingerprint of each chunk's data, in a {@link ChunkMetaDatabase} of its own,
+ * and the {@link RegionDigests} computed from them.
+ * A region's sub-region digests are computed when first needed, and then kept up to date as fingerprints change.
+ * Not thread-safe; {@link DimensionChunkMeta} guards it.
+ */
+class ChunkDigestIndex {
+	private final ChunkMetaDatabase fingerprints;
+	/**
+	 * 16 longs per region, so small enough to keep for all regions looked at
+	 */
+	private final HashMap<RegionPos, long[]> subRegionDigests = new HashMap<>();
+
+	ChunkDigestIndex(@NotNull ChunkMetaDatabase fingerprints) {
+		this.fingerprints = fingerprints;
+	}
+
+	ChunkMetaDatabase getDatabase() {
+		return fingerprints;
+	}
+
+	/**
+	 * @return 0 if unknown
+	 */
+	long getFingerprint(@NotNull RegionPos regionPos, int chunkIndex) {
+		return fingerprints.get(regionPos, chunkIndex);
+	}
+
+	void setFingerprint(@NotNull RegionPos regionPos, int chunkIndex, long fingerprint) throws IOException {
+		final long previous = fingerprints.get(regionPos, chunkIndex);
+		if (previous == fingerprint) return;
+		fingerprints.set(regionPos, chunkIndex, fingerprint);
+		final long[] digests = subRegionDigests.get(regionPos);
+		if (digests != null) {
+			digests[RegionDigests.subRegionIndex(chunkIndex)] ^=
+					RegionDigests.leaf(chunkIndex, previous) ^ RegionDigests.leaf(chunkIndex, fingerprint);
+		}
+	}
+
+	long getRegionDigest(@NotNull RegionPos regionPos) {
+		return RegionDigests.regionDigest(getSubRegionDigests(regionPos));
+	}
+
+	/**
+	 * @return {@link RegionDigests#SUB_REGIONS_PER_REGION} digests; don't modify
+	 */
+	long @NotNull [] getSubRegionDigests(@NotNull RegionPos regionPos) {
+		long[] digests = subRegionDigests.get(regionPos);
+		if (digests != null) return digests;
+		digests = new long[RegionDigests.SUB_REGIONS_PER_REGION];
+		if (fingerprints.hasRegion(regionPos)) {
+			final var chunkFingerprints = new long[RegionPos.CHUNKS_IN_REGION];
+			fingerprints.readRegion(regionPos, chunkFingerprints);
+			for (int chunkIndex = 0; chunkIndex < RegionPos.CHUNKS_IN_REGION; chunkIndex++) {
+				digests[RegionDigests.subRegionIndex(chunkIndex)] ^= RegionDigests.leaf(chunkIndex, chunkFingerprints[chunkIndex]);
+			}
+		}
+		subRegionDigests.put(regionPos, digests);
+		return digests;
+	}
+}
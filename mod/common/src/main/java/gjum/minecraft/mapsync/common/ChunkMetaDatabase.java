@@ -0,0 +1,263 @@
+package gjum.minecraft.mapsync.common;
+
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * One memory-mapped file holding a long per chunk, for all regions of a dimension.
+ * Layout: a header page, the region index (x and z of the region in each slot, in order of allocation),
+ * then the slots of 32×32 longs, one per region, in the same order.
+ * The slots are mapped in a few large parts, each mapped once and kept for as long as the file is open;
+ * the OS decides which of their pages stay in memory, like with any file it caches.
+ * The last part is mapped again at twice the size when it fills up, so the file takes at most about twice
+ * the space of the regions in it, and each part is only remapped a few times.
+ * Regions without a slot read as all 0. Not thread-safe; {@link DimensionChunkMeta} and {@link PersistedChunkHashes} guard theirs.
+ * <p>
+ * The smallest value of each slot is kept up to date in a second mapped file next to it (`.min`),
+ * so comparing many regions against the sync server's takes no more than a lookup each.
+ * It is rebuilt from the slots if the game didn't shut down cleanly.
+ */
+class ChunkMetaDatabase {
+	private static final int MAGIC = 0x4d53434d; // "MSCM"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 4096;
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_VERSION = 4;
+	private static final int OFFSET_NUM_REGIONS = 8;
+
+	/**
+	 * 256×256 regions, or ±65k blocks; fixed, so the slots can start at a fixed offset
+	 */
+	static final int MAX_REGIONS = 256 * 256;
+	private static final int INDEX_ENTRY_SIZE = 4 + 4;
+	private static final long SLOTS_OFFSET = HEADER_SIZE + (long) MAX_REGIONS * INDEX_ENTRY_SIZE;
+	static final int SLOT_SIZE = 8 * RegionPos.CHUNKS_IN_REGION;
+	/**
+	 * 64 MiB; a power of 2, so growing parts fill it exactly
+	 */
+	private static final int SLOTS_PER_PART = 8192;
+	private static final int MIN_PART_SLOTS = 64;
+
+	private static final int MINS_HEADER_SIZE = 16;
+	private static final int MINS_OFFSET_MAGIC = 0;
+	private static final int MINS_OFFSET_NUM_REGIONS = 4;
+	/**
+	 * set to 0 while open, so we know to rebuild after a crash
+	 */
+	private static final int MINS_OFFSET_CLEAN = 8;
+
+	private final FileChannel channel;
+	private final FileChannel minsChannel;
+	/**
+	 * the smallest value of each slot, in slot order
+	 */
+	private final MappedByteBuffer minsBuffer;
+	/**
+	 * header and index
+	 */
+	private final MappedByteBuffer indexBuffer;
+	/**
+	 * by part number; null until a slot in it is accessed
+	 */
+	private final MappedByteBuffer[] parts = new MappedByteBuffer[(MAX_REGIONS + SLOTS_PER_PART - 1) / SLOTS_PER_PART];
+	private final HashMap<RegionPos, Integer> regionSlots = new HashMap<>();
+	private int numRegions;
+
+	ChunkMetaDatabase(@NotNull Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		boolean isNew = channel.size() == 0;
+		indexBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS_OFFSET);
+		if (isNew) {
+			indexBuffer.putInt(OFFSET_MAGIC, MAGIC);
+			indexBuffer.putInt(OFFSET_VERSION, FORMAT_VERSION);
+			indexBuffer.putInt(OFFSET_NUM_REGIONS, 0);
+		} else if (indexBuffer.getInt(OFFSET_MAGIC) != MAGIC || indexBuffer.getInt(OFFSET_VERSION) != FORMAT_VERSION) {
+			channel.close();
+			throw new IOException("Not a chunk meta database of version " + FORMAT_VERSION + ": " + path);
+		}
+		numRegions = indexBuffer.getInt(OFFSET_NUM_REGIONS);
+		if (numRegions < 0 || numRegions > MAX_REGIONS) {
+			channel.close();
+			throw new IOException("Invalid region count " + numRegions + " in " + path);
+		}
+		for (int slot = 0; slot < numRegions; slot++) {
+			int offset = HEADER_SIZE + slot * INDEX_ENTRY_SIZE;
+			regionSlots.put(new RegionPos(indexBuffer.getInt(offset), indexBuffer.getInt(offset + 4)), slot);
+		}
+
+		final Path minsPath = path.resolveSibling(path.getFileName() + ".min");
+		minsChannel = FileChannel.open(minsPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		minsBuffer = minsChannel.map(FileChannel.MapMode.READ_WRITE, 0, MINS_HEADER_SIZE + 8L * MAX_REGIONS);
+		if (minsBuffer.getInt(MINS_OFFSET_MAGIC) != MAGIC
+				|| minsBuffer.getInt(MINS_OFFSET_NUM_REGIONS) != numRegions
+				|| minsBuffer.getInt(MINS_OFFSET_CLEAN) != 1
+		) {
+			for (int slot = 0; slot < numRegions; slot++) {
+				updateMin(slot);
+			}
+			minsBuffer.putInt(MINS_OFFSET_MAGIC, MAGIC);
+			minsBuffer.putInt(MINS_OFFSET_NUM_REGIONS, numRegions);
+		}
+		minsBuffer.putInt(MINS_OFFSET_CLEAN, 0);
+		minsBuffer.force();
+	}
+
+	int getNumRegions() {
+		return numRegions;
+	}
+
+	boolean hasRegion(@NotNull RegionPos regionPos) {
+		return regionSlots.containsKey(regionPos);
+	}
+
+	/**
+	 * @return 0 if the region has no slot
+	 */
+	long get(@NotNull RegionPos regionPos, int chunkNr) {
+		final Integer slot = regionSlots.get(regionPos);
+		if (slot == null) return 0;
+		return partOf(slot).getLong(offsetInPart(slot, chunkNr));
+	}
+
+	void set(@NotNull RegionPos regionPos, int chunkNr, long value) throws IOException {
+		final int slot = getOrAllocateSlot(regionPos);
+		final var part = partOf(slot);
+		final int offset = offsetInPart(slot, chunkNr);
+		final long previous = part.getLong(offset);
+		part.putLong(offset, value);
+		final long min = getMin(slot);
+		if (value < min) {
+			minsBuffer.putLong(minOffset(slot), value);
+		} else if (previous == min && value > previous) {
+			updateMin(slot); // may have been the only chunk at the minimum
+		}
+	}
+
+	/**
+	 * @return the smallest value in the region, or 0 if it has no slot
+	 */
+	long getMin(@NotNull RegionPos regionPos) {
+		final Integer slot = regionSlots.get(regionPos);
+		if (slot == null) return 0;
+		return getMin(slot);
+	}
+
+	/**
+	 * @param values receives all {@link RegionPos#CHUNKS_IN_REGION} chunks of the region; all 0 if it has no slot
+	 */
+	void readRegion(@NotNull RegionPos regionPos, long @NotNull [] values) {
+		final Integer slot = regionSlots.get(regionPos);
+		if (slot == null) {
+			Arrays.fill(values, 0);
+			return;
+		}
+		partOf(slot).slice(offsetInPart(slot, 0), SLOT_SIZE).asLongBuffer().get(values);
+	}
+
+	void writeRegion(@NotNull RegionPos regionPos, long @NotNull [] values) throws IOException {
+		final int slot = getOrAllocateSlot(regionPos);
+		partOf(slot).slice(offsetInPart(slot, 0), SLOT_SIZE).asLongBuffer().put(values);
+		updateMin(slot);
+	}
+
+	/**
+	 * for {@link MappedByteBuffer#force()} without holding the lock
+	 */
+	List<MappedByteBuffer> getMappings() {
+		final var mappings = new ArrayList<MappedByteBuffer>(parts.length + 2);
+		mappings.add(indexBuffer);
+		mappings.add(minsBuffer);
+		for (MappedByteBuffer part : parts) {
+			if (part != null) mappings.add(part);
+		}
+		return mappings;
+	}
+
+	/**
+	 * writes the changed pages to disk
+	 */
+	void force() {
+		indexBuffer.force();
+		minsBuffer.force();
+		for (MappedByteBuffer part : parts) {
+			if (part != null) part.force();
+		}
+	}
+
+	void close() throws IOException {
+		force();
+		minsBuffer.putInt(MINS_OFFSET_CLEAN, 1);
+		minsBuffer.force();
+		// the mappings stay valid until they are garbage collected
+		channel.close();
+		minsChannel.close();
+	}
+
+	private int getOrAllocateSlot(RegionPos regionPos) throws IOException {
+		final Integer existing = regionSlots.get(regionPos);
+		if (existing != null) return existing;
+		if (numRegions >= MAX_REGIONS) throw new IOException("Too many regions, can't store " + regionPos);
+		final int slot = numRegions;
+		partOf(slot); // grows the file before the slot is referenced from the index
+		int offset = HEADER_SIZE + slot * INDEX_ENTRY_SIZE;
+		indexBuffer.putInt(offset, regionPos.x());
+		indexBuffer.putInt(offset + 4, regionPos.z());
+		numRegions++;
+		indexBuffer.putInt(OFFSET_NUM_REGIONS, numRegions);
+		minsBuffer.putLong(minOffset(slot), 0); // the new slot is all 0
+		minsBuffer.putInt(MINS_OFFSET_NUM_REGIONS, numRegions);
+		regionSlots.put(regionPos, slot);
+		return slot;
+	}
+
+	private long getMin(int slot) {
+		return minsBuffer.getLong(minOffset(slot));
+	}
+
+	private void updateMin(int slot) {
+		final var part = partOf(slot);
+		final int start = offsetInPart(slot, 0);
+		long min = Long.MAX_VALUE;
+		for (int chunkNr = 0; chunkNr < RegionPos.CHUNKS_IN_REGION; chunkNr++) {
+			min = Math.min(min, part.getLong(start + 8 * chunkNr));
+		}
+		minsBuffer.putLong(minOffset(slot), min);
+	}
+
+	private static int minOffset(int slot) {
+		return MINS_HEADER_SIZE + 8 * slot;
+	}
+
+	private MappedByteBuffer partOf(int slot) {
+		final int partNr = slot / SLOTS_PER_PART;
+		final MappedByteBuffer part = parts[partNr];
+		final int numSlots = slot % SLOTS_PER_PART + 1;
+		if (part != null && part.capacity() >= numSlots * SLOT_SIZE) return part;
+		int partSlots = MIN_PART_SLOTS;
+		while (partSlots < numSlots) partSlots *= 2;
+		try {
+			long offset = SLOTS_OFFSET + (long) partNr * SLOTS_PER_PART * SLOT_SIZE;
+			// mapping beyond the end grows the file; the new part reads as 0.
+			// The smaller mapping it replaces is unmapped once it's garbage collected; its changes are in the file already
+			final var mapped = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) partSlots * SLOT_SIZE);
+			parts[partNr] = mapped;
+			return mapped;
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't map chunk meta database part " + partNr, e);
+		}
+	}
+
+	private static int offsetInPart(int slot, int chunkNr) {
+		return (slot % SLOTS_PER_PART) * SLOT_SIZE + 8 * chunkNr;
+	}
+}
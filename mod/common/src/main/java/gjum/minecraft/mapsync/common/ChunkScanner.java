@@ -0,0 +1,142 @@
+package gjum.minecraft.mapsync.common;
+
+import gjum.minecraft.mapsync.common.data.ChunkSnapshot;
+import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.data.PackedColumns;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static gjum.minecraft.mapsync.common.MapSyncMod.logger;
+
+/**
+ * Turns {@link ChunkSnapshot}s into {@link ChunkTile}s on a small pool of background threads,
+ * so mc's thread only has to copy the chunk data.
+ * Finished tiles are handed to their consumer in the same order the snapshots were submitted in.
+ */
+public class ChunkScanner {
+	private static final int NUM_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	/**
+	 * when this many snapshots are waiting, mc's thread scans the chunk itself instead of queueing more
+	 */
+	private static final int MAX_QUEUED = 512;
+
+	private static final AtomicInteger threadCounter = new AtomicInteger();
+
+	private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			NUM_THREADS, NUM_THREADS,
+			30, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<>(MAX_QUEUED),
+			runnable -> {
+				var thread = new Thread(runnable, "MapSync Chunk Scanner #" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			},
+			new ThreadPoolExecutor.CallerRunsPolicy());
+
+	/**
+	 * in submission order; tiles are only published from the head
+	 */
+	private final ArrayDeque<ScanJob> pending = new ArrayDeque<>();
+	/**
+	 * only one thread publishes at a time, which keeps the tiles in order without holding the lock on {@link #pending}
+	 */
+	private final AtomicBoolean isPublishing = new AtomicBoolean();
+
+	public ChunkScanner() {
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public int getQueueSize() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * @param onScanned called with the finished tile, on whichever scanner thread completes the oldest pending job
+	 */
+	public void scanLater(@NotNull ChunkSnapshot snapshot, @NotNull Consumer<ChunkTile> onScanned) {
+		scanLater(snapshot, null, null, onScanned);
+	}
+
+	/**
+	 * Only scans the changed columns, and copies the others from previous.
+	 * See {@link Cartography#chunkTileFromSnapshot(ChunkSnapshot, PackedColumns, BitSet)}.
+	 */
+	public void scanLater(
+			@NotNull ChunkSnapshot snapshot,
+			@Nullable PackedColumns previous,
+			@Nullable BitSet changedColumns,
+			@NotNull Consumer<ChunkTile> onScanned
+	) {
+		var job = new ScanJob(new CompletableFuture<>(), onScanned);
+		synchronized (pending) {
+			pending.add(job);
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					job.tile.complete(Cartography.chunkTileFromSnapshot(snapshot, previous, changedColumns));
+				} catch (Throwable err) {
+					job.tile.completeExceptionally(err);
+				}
+				publishCompleted();
+			});
+		} catch (RejectedExecutionException ignored) {
+			// shut down
+			synchronized (pending) {
+				pending.remove(job);
+			}
+		}
+	}
+
+	public void shutDown() {
+		executor.shutdownNow();
+		synchronized (pending) {
+			pending.clear();
+		}
+	}
+
+	/**
+	 * Publishes the finished jobs at the head, unless another thread is doing that already; then it picks up ours too.
+	 * The consumers run without the lock, so queueing more jobs doesn't wait for them.
+	 */
+	private void publishCompleted() {
+		while (isPublishing.compareAndSet(false, true)) {
+			try {
+				ScanJob job;
+				while ((job = pollCompleted()) != null) {
+					try {
+						job.onScanned.accept(job.tile.join());
+					} catch (Throwable err) {
+						logger.error("[map-sync] Failed scanning chunk", err);
+					}
+				}
+			} finally {
+				isPublishing.set(false);
+			}
+			// a job may have finished after our last poll, while its thread still saw us publishing
+			synchronized (pending) {
+				if (pending.isEmpty() || !pending.peek().tile.isDone()) return;
+			}
+		}
+	}
+
+	private @Nullable ScanJob pollCompleted() {
+		synchronized (pending) {
+			if (pending.isEmpty() || !pending.peek().tile.isDone()) return null;
+			return pending.poll();
+		}
+	}
+
+	private record ScanJob(CompletableFuture<ChunkTile> tile, Consumer<ChunkTile> onScanned) {
+	}
+}
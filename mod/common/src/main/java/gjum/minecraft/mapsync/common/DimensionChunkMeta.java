@@ -1,28 +1,65 @@
 package gjum.minecraft.mapsync.common;
 
+import gjum.minecraft.mapsync.common.data.CatchupChunks;
+import gjum.minecraft.mapsync.common.data.RegionDigests;
 import gjum.minecraft.mapsync.common.data.RegionPos;
+import gjum.minecraft.mapsync.common.data.RegionTimestamp;
+import gjum.minecraft.mapsync.common.net.ServerKnownChunkHashes;
 import net.minecraft.client.Minecraft;
 import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.file.*;
-import java.nio.file.attribute.FileTime;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import static gjum.minecraft.mapsync.common.MapSyncMod.debugLog;
+import static gjum.minecraft.mapsync.common.MapSyncMod.logger;
 
 /**
  * Stores each chunk's timestamp of when it was received from mc.
- * Persists them grouped by region at `.minecraft/MapSync/cache/{mcServerName}/{dimensionName}/r{x},{z}.chunkmeta`.
- * Each region's LastModifiedTime is set to the oldest contained chunk (or 0 if any chunks are absent), to easily find regions to request from the sync server.
+ * Persists them in one memory-mapped {@link ChunkMetaDatabase} at `.minecraft/MapSync/cache/{mcServerName}/{dimensionName}/chunkmeta.db`,
+ * so reading and writing a timestamp is just a memory access, and the OS writes the changed pages back.
+ * A background thread forces them to disk every so often, and when the dimension is shut down.
+ * Which of its pages stay in memory is up to the OS.
+ * <p>
+ * The fingerprint of each chunk's data is kept the same way in `chunkdigests.db`, see {@link ChunkDigestIndex},
+ * so regions can be compared with the sync server's by digest.
+ * <p>
+ * Older versions stored each region in its own `r{x},{z}.chunkmeta` file (with the region's oldest timestamp as mtime).
+ * Those are moved into the database when it's opened.
  */
 public class DimensionChunkMeta {
+	private static final long FORCE_INTERVAL_MS = 30_000;
+	private static final Pattern REGION_FILE_NAME = Pattern.compile("r(-?\\d+),(-?\\d+)\\.chunkmeta");
+
 	public final String mcServerName;
 	public final String dimensionName;
-	private final String dimensionDirPath;
+	private final Path dimensionDirPath;
+
+	/**
+	 * null if it couldn't be opened; then timestamps aren't persisted
+	 */
+	private final @Nullable ChunkMetaDatabase database;
+	/**
+	 * null if it couldn't be opened; then all regions look like they differ from the sync server's
+	 */
+	private final @Nullable ChunkDigestIndex digestIndex;
 
-	private final HashMap<RegionPos, long[]> regionsTimestamps = new HashMap<>();
+	private final ScheduledExecutorService ioExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+		var thread = new Thread(r, "MapSync ChunkMeta IO");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private boolean hasShutDown = false;
 
 	DimensionChunkMeta(String mcServerName, String dimensionName) {
 		this.mcServerName = mcServerName;
@@ -31,57 +68,236 @@ public class DimensionChunkMeta {
 		var dir = Path.of(mcRoot, "MapSync", "cache",
 				mcServerName.replaceAll(":", "~"), dimensionName.replaceAll(":", "~"));
 		dir.toFile().mkdirs();
-		this.dimensionDirPath = dir.toAbsolutePath().toString();
+		this.dimensionDirPath = dir.toAbsolutePath();
+
+		database = openDatabase(dimensionDirPath.resolve("chunkmeta.db"));
+		if (database != null) {
+			migrateRegionFiles(database);
+		}
+		final var fingerprints = openDatabase(dimensionDirPath.resolve("chunkdigests.db"));
+		digestIndex = fingerprints == null ? null : new ChunkDigestIndex(fingerprints);
+		ioExecutor.scheduleWithFixedDelay(this::force, FORCE_INTERVAL_MS, FORCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
 	}
 
-	private Path getRegionFilePath(RegionPos regionPos) {
-		return Path.of(dimensionDirPath, "r%d,%d.chunkmeta".formatted(regionPos.x(), regionPos.z()));
+	private static @Nullable ChunkMetaDatabase openDatabase(Path path) {
+		try {
+			return new ChunkMetaDatabase(path);
+		} catch (IOException e) {
+			logger.warn("[map-sync] Can't open chunk meta database, starting a new one: " + e.getMessage());
+		}
+		try {
+			Files.move(path, path.resolveSibling(path.getFileName() + ".broken"), StandardCopyOption.REPLACE_EXISTING);
+			return new ChunkMetaDatabase(path);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 
+	/**
+	 * includes absent chunks (ts=0), because the sync server may have a chunk there (i.e. newer than 0)
+	 */
 	public synchronized long getOldestChunkTsInRegion(RegionPos regionPos) {
-		long[] chunkTimestamps = regionsTimestamps.computeIfAbsent(regionPos, this::readRegionTimestampsFile);
-		return Arrays.stream(chunkTimestamps).min().orElse(0);
+		if (hasShutDown || database == null) return 0;
+		return database.getMin(regionPos);
+	}
+
+	/**
+	 * @return the regions where the sync server has a chunk newer than our oldest one
+	 */
+	public synchronized List<RegionPos> findOutdatedRegions(RegionTimestamp[] serverRegionTimestamps) {
+		final var outdatedRegions = new ArrayList<RegionPos>();
+		if (hasShutDown) return outdatedRegions;
+		for (RegionTimestamp regionTs : serverRegionTimestamps) {
+			final var regionPos = new RegionPos(regionTs.x(), regionTs.z());
+			final long oldestChunkTs = database == null ? 0 : database.getMin(regionPos);
+			if (regionTs.timestamp() > oldestChunkTs) outdatedRegions.add(regionPos);
+		}
+		return outdatedRegions;
+	}
+
+	/**
+	 * @param serverDigests same order as `regions`
+	 * @return the regions whose digest differs from the sync server's
+	 */
+	public synchronized List<RegionPos> findDifferingRegions(RegionPos[] regions, long[] serverDigests) {
+		final var differingRegions = new ArrayList<RegionPos>();
+		if (hasShutDown) return differingRegions;
+		for (int i = 0; i < regions.length; i++) {
+			if (digestIndex == null || digestIndex.getRegionDigest(regions[i]) != serverDigests[i]) {
+				differingRegions.add(regions[i]);
+			}
+		}
+		return differingRegions;
+	}
+
+	/**
+	 * @return bit i is set if sub-region i differs, see {@link RegionDigests#subRegionIndex}
+	 */
+	public synchronized int findDifferingSubRegions(RegionPos regionPos, long[] serverSubRegionDigests) {
+		if (hasShutDown) return 0;
+		if (digestIndex == null) return (1 << RegionDigests.SUB_REGIONS_PER_REGION) - 1;
+		final long[] subRegionDigests = digestIndex.getSubRegionDigests(regionPos);
+		int mask = 0;
+		for (int i = 0; i < RegionDigests.SUB_REGIONS_PER_REGION; i++) {
+			if (subRegionDigests[i] != serverSubRegionDigests[i]) mask |= 1 << i;
+		}
+		return mask;
+	}
+
+	/**
+	 * Adds the chunks where the sync server has newer data than ours to `outdated`.
+	 * Where the data is the same, only the timestamp is updated, so it isn't downloaded again.
+	 * Where our data is at least as new, the digests keep differing, until one of us uploads the newer data.
+	 *
+	 * @param chunkPositions {@link ChunkPos#toLong()}
+	 */
+	public synchronized void findOutdatedChunks(long[] chunkPositions, long[] serverTimestamps, long[] serverFingerprints, @NotNull CatchupChunks outdated) {
+		if (hasShutDown) return;
+		for (int i = 0; i < chunkPositions.length; i++) {
+			final int x = ChunkPos.getX(chunkPositions[i]);
+			final int z = ChunkPos.getZ(chunkPositions[i]);
+			final var regionPos = RegionPos.forChunkPos(x, z);
+			final int chunkIndex = RegionPos.chunkIndex(x, z);
+			final long timestamp = database == null ? 0 : database.get(regionPos, chunkIndex);
+			if (serverTimestamps[i] == timestamp && timestamp != 0 && digestIndex != null
+					&& digestIndex.getFingerprint(regionPos, chunkIndex) == 0) {
+				// stored before fingerprints were; the same timestamp means we got it from the same scan
+				try {
+					digestIndex.setFingerprint(regionPos, chunkIndex, serverFingerprints[i]);
+				} catch (IOException | IllegalStateException e) {
+					e.printStackTrace();
+				}
+			}
+			if (serverTimestamps[i] <= timestamp) continue;
+			if (digestIndex != null && database != null && digestIndex.getFingerprint(regionPos, chunkIndex) == serverFingerprints[i]) {
+				try {
+					database.set(regionPos, chunkIndex, serverTimestamps[i]);
+				} catch (IOException | IllegalStateException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+			outdated.add(chunkPositions[i], serverTimestamps[i]);
+		}
 	}
 
 	public synchronized long getTimestamp(ChunkPos chunkPos) {
-		final var regionPos = RegionPos.forChunkPos(chunkPos);
-		final long[] regionTimestamps = regionsTimestamps.computeIfAbsent(regionPos, this::readRegionTimestampsFile);
-		final int chunkNr = RegionPos.chunkIndex(chunkPos);
-		return regionTimestamps[chunkNr];
+		if (hasShutDown || database == null) return 0;
+		return database.get(RegionPos.forChunkPos(chunkPos), RegionPos.chunkIndex(chunkPos));
 	}
 
-	public synchronized void setTimestamp(ChunkPos chunkPos, long timestamp) {
-		final var regionPos = RegionPos.forChunkPos(chunkPos);
-		final long[] regionTimestamps = regionsTimestamps.computeIfAbsent(regionPos, this::readRegionTimestampsFile);
-		final int chunkNr = RegionPos.chunkIndex(chunkPos);
-		regionTimestamps[chunkNr] = timestamp;
-		writeRegionTimestampsFile(regionPos, regionTimestamps);
+	/**
+	 * @param chunkPos {@link ChunkPos#toLong()}
+	 */
+	public synchronized long getTimestamp(long chunkPos) {
+		if (hasShutDown || database == null) return 0;
+		final int x = ChunkPos.getX(chunkPos);
+		final int z = ChunkPos.getZ(chunkPos);
+		return database.get(RegionPos.forChunkPos(x, z), RegionPos.chunkIndex(x, z));
 	}
 
-	private long[] readRegionTimestampsFile(RegionPos regionPos) {
-		long[] longs = new long[RegionPos.CHUNKS_IN_REGION];
+	/**
+	 * Only changes memory; the OS writes it to disk in the background.
+	 * Does nothing once shut down, as scans may still finish after the dimension was left.
+	 *
+	 * @param dataHash of the chunk data at that timestamp, for the region digests
+	 */
+	public synchronized void setTimestamp(ChunkPos chunkPos, long timestamp, byte @NotNull [] dataHash) {
+		final var regionPos = RegionPos.forChunkPos(chunkPos);
+		final int chunkIndex = RegionPos.chunkIndex(chunkPos);
+		if (hasShutDown) return;
 		try {
-			final byte[] byteArray = Files.readAllBytes(getRegionFilePath(regionPos));
-			ByteBuffer.wrap(byteArray).asLongBuffer().get(longs);
-		} catch (FileNotFoundException | NoSuchFileException ignored) {
-		} catch (IOException e) {
+			if (database != null) database.set(regionPos, chunkIndex, timestamp);
+			if (digestIndex != null) {
+				digestIndex.setFingerprint(regionPos, chunkIndex, ServerKnownChunkHashes.fingerprint(dataHash));
+			}
+		} catch (IOException | IllegalStateException e) {
 			e.printStackTrace();
 		}
-		return longs;
 	}
 
-	private synchronized void writeRegionTimestampsFile(RegionPos regionPos, long[] chunkTimestamps) {
+	/**
+	 * Writes all changes to disk and stops the background thread.
+	 * Waits for that, so nothing is lost when the game exits right after.
+	 */
+	public void shutDown() {
+		synchronized (this) {
+			if (hasShutDown) return;
+			hasShutDown = true;
+		}
+		ioExecutor.shutdownNow();
+		synchronized (this) {
+			if (digestIndex != null) {
+				try {
+					digestIndex.getDatabase().close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			if (database == null) return;
+			try {
+				database.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * runs on the io thread
+	 */
+	private void force() {
 		try {
-			final var buffer = ByteBuffer.allocate(8 * RegionPos.CHUNKS_IN_REGION);
-			buffer.asLongBuffer().put(chunkTimestamps);
-			buffer.flip();
-			Path path = getRegionFilePath(regionPos);
-			Files.write(path, buffer.array());
-			// include absent chunks (ts=0) because sync server may have a chunk there (i.e. newer than 0)
-			long oldestChunkTs = Arrays.stream(chunkTimestamps).min().orElseThrow();
-			Files.setLastModifiedTime(path, FileTime.fromMillis(oldestChunkTs));
+			final var mappings = new ArrayList<MappedByteBuffer>();
+			synchronized (this) {
+				if (hasShutDown) return;
+				if (database != null) mappings.addAll(database.getMappings());
+				if (digestIndex != null) mappings.addAll(digestIndex.getDatabase().getMappings());
+			}
+			// without the lock, so writes don't wait for the disk; concurrent ones end up in this or the next force
+			for (MappedByteBuffer mapping : mappings) {
+				mapping.force();
+			}
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * moves the region files of older versions into the database, and deletes them
+	 */
+	private void migrateRegionFiles(ChunkMetaDatabase database) {
+		final var chunkTimestamps = new long[RegionPos.CHUNKS_IN_REGION];
+		int numMigrated = 0;
+		try (var files = Files.newDirectoryStream(dimensionDirPath, "r*.chunkmeta")) {
+			for (Path path : files) {
+				final var matcher = REGION_FILE_NAME.matcher(path.getFileName().toString());
+				if (!matcher.matches()) continue;
+				final var regionPos = new RegionPos(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+				final byte[] bytes = Files.readAllBytes(path);
+				if (bytes.length != ChunkMetaDatabase.SLOT_SIZE) {
+					logger.warn("[map-sync] Skipping chunk meta file of wrong size: " + path);
+					continue;
+				}
+				ByteBuffer.wrap(bytes).asLongBuffer().get(chunkTimestamps);
+				// a region already in the database was migrated before, and is newer than the file
+				if (!database.hasRegion(regionPos)) database.writeRegion(regionPos, chunkTimestamps);
+				numMigrated++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return; // keep the files, and try again next time
+		}
+		if (numMigrated == 0) return;
+		database.force();
+		try (var files = Files.newDirectoryStream(dimensionDirPath, "r*.chunkmeta")) {
+			for (Path path : files) {
+				if (REGION_FILE_NAME.matcher(path.getFileName().toString()).matches()) Files.delete(path);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		debugLog("migrated " + numMigrated + " chunk meta region files of " + dimensionName);
 	}
 }
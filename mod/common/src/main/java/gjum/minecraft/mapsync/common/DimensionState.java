@@ -1,12 +1,18 @@
 package gjum.minecraft.mapsync.common;
 
 import gjum.minecraft.mapsync.common.data.*;
+import gjum.minecraft.mapsync.common.net.SyncClient;
 import net.minecraft.client.Minecraft;
+import net.minecraft.core.BlockPos;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import static gjum.minecraft.mapsync.common.MapSyncMod.debugLog;
 
@@ -21,6 +27,8 @@ public class DimensionState {
 
 	private final DimensionChunkMeta chunkMeta;
 	private final RenderQueue renderQueue;
+	private final ChunkScanner chunkScanner;
+	private final ChunkChangeTracker changeTracker = new ChunkChangeTracker();
 	private final CatchupLogic catchup;
 	private int numChunksReceived = 0;
 	private int numChunksRendered = 0;
@@ -30,6 +38,7 @@ public class DimensionState {
 		String dimensionName = dimension.location().toString();
 		chunkMeta = new DimensionChunkMeta(mcServerName, dimensionName);
 		renderQueue = new RenderQueue(this);
+		chunkScanner = new ChunkScanner();
 		catchup = new CatchupLogic(this);
 	}
 
@@ -37,18 +46,43 @@ public class DimensionState {
 		if (hasShutDown) return;
 		hasShutDown = true;
 		renderQueue.shutDown();
+		chunkScanner.shutDown();
+		chunkMeta.shutDown();
 	}
 
 	public long getOldestChunkTsInRegion(RegionPos regionPos) {
 		return chunkMeta.getOldestChunkTsInRegion(regionPos);
 	}
 
+	public List<RegionPos> findOutdatedRegions(RegionTimestamp[] serverRegionTimestamps) {
+		return chunkMeta.findOutdatedRegions(serverRegionTimestamps);
+	}
+
+	public List<RegionPos> findDifferingRegions(RegionPos[] regions, long[] serverDigests) {
+		return chunkMeta.findDifferingRegions(regions, serverDigests);
+	}
+
+	public int findDifferingSubRegions(RegionPos regionPos, long[] serverSubRegionDigests) {
+		return chunkMeta.findDifferingSubRegions(regionPos, serverSubRegionDigests);
+	}
+
+	public void findOutdatedChunks(long[] chunkPositions, long[] serverTimestamps, long[] serverFingerprints, CatchupChunks outdated) {
+		chunkMeta.findOutdatedChunks(chunkPositions, serverTimestamps, serverFingerprints, outdated);
+	}
+
 	public long getChunkTimestamp(ChunkPos chunkPos) {
 		return chunkMeta.getTimestamp(chunkPos);
 	}
 
-	public void setChunkTimestamp(ChunkPos chunkPos, long timestamp) {
-		chunkMeta.setTimestamp(chunkPos, timestamp);
+	/**
+	 * @param chunkPos {@link ChunkPos#toLong()}
+	 */
+	public long getChunkTimestamp(long chunkPos) {
+		return chunkMeta.getTimestamp(chunkPos);
+	}
+
+	public void setChunkTimestamp(ChunkPos chunkPos, long timestamp, byte[] dataHash) {
+		chunkMeta.setTimestamp(chunkPos, timestamp, dataHash);
 	}
 
 	public int getNumChunksReceived() {
@@ -63,8 +97,42 @@ public class DimensionState {
 		return renderQueue.getQueueSize();
 	}
 
-	public void addCatchupChunks(List<CatchupChunk> catchupChunks) {
-		catchup.addCatchupChunks(catchupChunks);
+	/**
+	 * scans the chunk in the background; see {@link ChunkScanner#scanLater}
+	 *
+	 * @param changedColumns null to scan all columns; otherwise the others are copied from the chunk's previous tile,
+	 *                       if there is one
+	 */
+	public void scanLater(ChunkSnapshot snapshot, @Nullable BitSet changedColumns, Consumer<ChunkTile> onScanned) {
+		if (hasShutDown) return;
+		var chunkPos = new ChunkPos(snapshot.x(), snapshot.z());
+		PackedColumns previous = null;
+		if (changedColumns == null) changeTracker.clearChanges(chunkPos);
+		else previous = changeTracker.getScannedColumns(chunkPos);
+		chunkScanner.scanLater(snapshot, previous, changedColumns, chunkTile -> {
+			changeTracker.onTileScanned(chunkTile);
+			onScanned.accept(chunkTile);
+		});
+	}
+
+	public void markColumnChanged(BlockPos pos) {
+		if (hasShutDown) return;
+		changeTracker.markColumnChanged(pos);
+	}
+
+	/**
+	 * see {@link ChunkChangeTracker#pollSettledChanges()}
+	 */
+	public Map<ChunkPos, BitSet> pollSettledChanges() {
+		return changeTracker.pollSettledChanges();
+	}
+
+	public void addCatchupChunks(CatchupChunks catchupChunks, SyncClient source) {
+		catchup.addCatchupChunks(catchupChunks, source);
+	}
+
+	public void handleSyncServerDisconnected(SyncClient client) {
+		catchup.handleSyncServerDisconnected(client);
 	}
 
 	public void processSharedChunk(ChunkTile chunkTile) {
@@ -97,6 +165,7 @@ public class DimensionState {
 	}
 
 	public void onChunkRenderDone(ChunkTile chunkTile) {
+		catchup.handleChunkRendered();
 		catchup.maybeRequestMoreCatchup();
 		++numChunksRendered;
 	}
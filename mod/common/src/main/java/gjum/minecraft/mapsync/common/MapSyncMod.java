@@ -4,13 +4,19 @@ import com.mojang.blaze3d.platform.InputConstants;
 import gjum.minecraft.mapsync.common.config.ModConfig;
 import gjum.minecraft.mapsync.common.config.ServerConfig;
 import gjum.minecraft.mapsync.common.data.*;
+import gjum.minecraft.mapsync.common.net.ServerKnownChunkHashes;
 import gjum.minecraft.mapsync.common.net.SyncClient;
 import gjum.minecraft.mapsync.common.net.packet.*;
 import net.minecraft.client.KeyMapping;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.ServerData;
+import net.minecraft.core.BlockPos;
 import net.minecraft.network.protocol.game.ClientboundLoginPacket;
 import net.minecraft.network.protocol.game.ClientboundRespawnPacket;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.LevelChunk;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -18,9 +24,6 @@ import org.jetbrains.annotations.Nullable;
 import org.lwjgl.glfw.GLFW;
 
 import java.util.*;
-import java.util.stream.Collectors;
-
-import static gjum.minecraft.mapsync.common.Cartography.chunkTileFromLevel;
 
 public abstract class MapSyncMod {
 	public static final String VERSION = "%VERSION%";
@@ -44,13 +47,28 @@ public abstract class MapSyncMod {
 			"category.map-sync"
 	);
 
-	private @NotNull List<SyncClient> syncClients = new ArrayList<>();
+	/**
+	 * Immutable, and only replaced when the sync server config changes or a client shuts down,
+	 * so the per-chunk code can iterate it without copying or rebuilding it.
+	 */
+	private volatile @NotNull List<SyncClient> syncClients = List.of();
+	/**
+	 * the config that syncClients was built for
+	 */
+	private @Nullable String syncClientsGameAddress;
+	private @NotNull List<String> syncClientsAddresses = List.of();
 
 	/**
 	 * Tracks state and render thread for current mc dimension.
 	 * Never access this directly; always go through `getDimensionState()`.
+	 * Guarded by dimensionStateLock, as the network threads and the shutdown hook use it too.
 	 */
 	private @Nullable DimensionState dimensionState;
+	private final Object dimensionStateLock = new Object();
+	/**
+	 * set by the shutdown hook; no new dimension state is opened after that
+	 */
+	private boolean hasGameExited = false;
 
 	/**
 	 * Tracks configuration for current mc server.
@@ -77,6 +95,23 @@ public abstract class MapSyncMod {
 
 		modConfig = ModConfig.load();
 		modConfig.saveNow(); // creates the default file if it doesn't exist yet
+
+		Runtime.getRuntime().addShutdownHook(new Thread(this::handleGameExit, "MapSync Shutdown"));
+	}
+
+	/**
+	 * writes everything that's only in memory yet
+	 */
+	private void handleGameExit() {
+		try {
+			synchronized (dimensionStateLock) {
+				hasGameExited = true;
+				shutDownDimensionState();
+			}
+			shutDownSyncClients();
+		} catch (Throwable e) {
+			e.printStackTrace();
+		}
 	}
 
 	public void handleTick() {
@@ -84,8 +119,14 @@ public abstract class MapSyncMod {
 			mc.setScreen(new ModGui(mc.screen));
 		}
 
+		// left the mc server; flush the dimension's data now, instead of when entering the next one
+		if (mc.level == null) shutDownDimensionState();
+
 		var dimensionState = getDimensionState();
-		if (dimensionState != null) dimensionState.onTick();
+		if (dimensionState != null) {
+			dimensionState.onTick();
+			rescanChangedChunks(dimensionState);
+		}
 	}
 
 	public void handleConnectedToServer(ClientboundLoginPacket packet) {
@@ -122,6 +163,20 @@ public abstract class MapSyncMod {
 		var syncServerAddresses = serverConfig.getSyncServerAddresses();
 		if (syncServerAddresses.isEmpty()) return shutDownSyncClients();
 
+		var currentClients = syncClients;
+		boolean isUpToDate = serverConfig.gameAddress.equals(syncClientsGameAddress)
+				&& syncServerAddresses.equals(syncClientsAddresses);
+		for (SyncClient client : currentClients) {
+			if (client.isShutDown) isUpToDate = false;
+		}
+		if (isUpToDate) return currentClients;
+
+		return rebuildSyncClients(serverConfig);
+	}
+
+	private synchronized @NotNull List<SyncClient> rebuildSyncClients(@NotNull ServerConfig serverConfig) {
+		var syncServerAddresses = List.copyOf(serverConfig.getSyncServerAddresses());
+
 		// will be filled with clients that are still wanted (address) and are still connected
 		var existingClients = new HashMap<String, SyncClient>();
 
@@ -144,40 +199,51 @@ public abstract class MapSyncMod {
 			if (client == null) client = new SyncClient(address, serverConfig.gameAddress);
 			client.autoReconnect = true;
 			return client;
-		}).collect(Collectors.toList());
+		}).toList();
+		syncClientsGameAddress = serverConfig.gameAddress;
+		syncClientsAddresses = syncServerAddresses;
 
 		return syncClients;
 	}
 
-	public List<SyncClient> shutDownSyncClients() {
+	public synchronized List<SyncClient> shutDownSyncClients() {
+		if (syncClients.isEmpty()) return syncClients;
 		for (SyncClient client : syncClients) {
 			client.shutDown();
 		}
-		syncClients.clear();
-		return Collections.emptyList();
+		syncClients = List.of();
+		syncClientsGameAddress = null;
+		syncClientsAddresses = List.of();
+		return syncClients;
 	}
 
 	/**
 	 * for current dimension
 	 */
 	public @Nullable DimensionState getDimensionState() {
-		if (mc.level == null) return null;
+		final var level = mc.level;
+		if (level == null) return null;
 		var serverConfig = getServerConfig();
 		if (serverConfig == null) return null;
 
-		if (dimensionState != null && dimensionState.dimension != mc.level.dimension()) {
-			shutDownDimensionState();
-		}
-		if (dimensionState == null || dimensionState.hasShutDown) {
-			dimensionState = new DimensionState(serverConfig.gameAddress, mc.level.dimension());
+		synchronized (dimensionStateLock) {
+			if (hasGameExited) return null;
+			if (dimensionState != null && dimensionState.dimension != level.dimension()) {
+				shutDownDimensionState();
+			}
+			if (dimensionState == null || dimensionState.hasShutDown) {
+				dimensionState = new DimensionState(serverConfig.gameAddress, level.dimension());
+			}
+			return dimensionState;
 		}
-		return dimensionState;
 	}
 
 	private void shutDownDimensionState() {
-		if (dimensionState != null) {
-			dimensionState.shutDown();
-			dimensionState = null;
+		synchronized (dimensionStateLock) {
+			if (dimensionState != null) {
+				dimensionState.shutDown();
+				dimensionState = null;
+			}
 		}
 	}
 
@@ -186,7 +252,7 @@ public abstract class MapSyncMod {
 	 * send it to the map data server right away.
 	 */
 	public void handleMcFullChunk(int cx, int cz) {
-		// TODO batch this up and send multiple chunks at once
+		// SyncClient batches the resulting tiles
 
 		if (mc.level == null) return;
 		// TODO disable in nether (no meaningful "surface layer")
@@ -195,23 +261,78 @@ public abstract class MapSyncMod {
 
 		debugLog("received mc chunk: " + cx + "," + cz);
 
-		var chunkTile = chunkTileFromLevel(mc.level, cx, cz);
+		scanAndSend(dimensionState, mc.level.getChunk(cx, cz), null);
+	}
 
-		// TODO handle journeymap skipping chunks due to rate limiting - probably need mixin on render function
-		if (RenderQueue.areAllMapModsMapping()) {
-			dimensionState.setChunkTimestamp(chunkTile.chunkPos(), chunkTile.timestamp());
+	/**
+	 * part of a chunk changed, and the chunk is likely to change again soon,
+	 * so a ChunkTile update is queued, instead of updating instantly.
+	 */
+	public void handleMcChunkPartialChange(BlockPos pos) {
+		if (mc.level == null) return;
+		var dimensionState = getDimensionState();
+		if (dimensionState == null) return;
+		// the dimension state is dropped when changing dimension, so we won't rescan these chunks in the wrong one
+		dimensionState.markColumnChanged(pos);
+	}
+
+	private void rescanChangedChunks(DimensionState dimensionState) {
+		if (mc.level == null) return;
+		for (var entry : dimensionState.pollSettledChanges().entrySet()) {
+			var chunkPos = entry.getKey();
+			var chunk = mc.level.getChunkSource().getChunk(chunkPos.x, chunkPos.z, false);
+			if (chunk == null) continue; // unloaded since; we'll scan it again when it gets loaded
+			debugLog("rescanning " + entry.getValue().cardinality() + " changed columns in chunk " + chunkPos);
+			scanAndSend(dimensionState, chunk, entry.getValue());
 		}
-		for (SyncClient client : getSyncClients()) {
-			client.sendChunkTile(chunkTile);
+	}
+
+	/**
+	 * @param changedColumns see {@link DimensionState#scanLater}
+	 */
+	private void scanAndSend(DimensionState dimensionState, LevelChunk chunk, @Nullable BitSet changedColumns) {
+		// copy the chunk now, while we're on the mc thread; the expensive column walk happens on the scanner threads
+		var snapshot = ChunkSnapshot.of(mc.level, chunk);
+		// TODO handle journeymap skipping chunks due to rate limiting - probably need mixin on render function
+		boolean isMapped = RenderQueue.areAllMapModsMapping();
+		var syncClients = getSyncClients(); // immutable, so it's fine to use it later on the scanner threads
+
+		dimensionState.scanLater(snapshot, changedColumns, chunkTile -> {
+			if (isMapped) {
+				dimensionState.setChunkTimestamp(chunkTile.chunkPos(), chunkTile.timestamp(), chunkTile.dataHash());
+			}
+			for (SyncClient client : syncClients) {
+				client.sendChunkTile(chunkTile);
+			}
+		});
+	}
+
+	/**
+	 * The sync server won't deliver the catchup chunks it listed; it lists them again when it's back.
+	 * Doesn't open a dimension state, as this also happens while leaving the game.
+	 */
+	public void handleSyncServerDisconnected(SyncClient client) {
+		final DimensionState dimensionState;
+		synchronized (dimensionStateLock) {
+			dimensionState = this.dimensionState;
 		}
+		if (dimensionState == null) return;
+		dimensionState.handleSyncServerDisconnected(client);
 	}
 
 	/**
-	 * part of a chunk changed, and the chunk is likely to change again soon,
-	 * so a ChunkTile update is queued, instead of updating instantly.
+	 * A sync server didn't store our upload of the chunk. Scans it again if it's still loaded,
+	 * so it gets uploaded in full; otherwise that happens when it's loaded next time.
 	 */
-	public void handleMcChunkPartialChange(int cx, int cz) {
-		// TODO update ChunkTile in a second or so; remember dimension in case it changes til then
+	public void handleChunkTileRejected(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+		mc.execute(() -> {
+			if (mc.level == null || mc.level.dimension() != dimension) return;
+			var dimensionState = getDimensionState();
+			if (dimensionState == null) return;
+			var chunk = mc.level.getChunkSource().getChunk(chunkPos.x, chunkPos.z, false);
+			if (chunk == null) return;
+			scanAndSend(dimensionState, chunk, null);
+		});
 	}
 
 	public void handleSyncServerEncryptionSuccess() {
@@ -225,29 +346,69 @@ public abstract class MapSyncMod {
 		if (!dimension.dimension.location().toString().equals(packet.getDimension())) {
 			return;
 		}
-		var outdatedRegions = new ArrayList<RegionPos>();
-		for (var regionTs : packet.getTimestamps()) {
-			var regionPos = new RegionPos(regionTs.x(), regionTs.z());
-			long oldestChunkTs = dimension.getOldestChunkTsInRegion(regionPos);
-			boolean requiresUpdate = regionTs.timestamp() > oldestChunkTs;
-
-			debugLog("region " + regionPos
-					+ (requiresUpdate ? " requires update." : " is up to date.")
-					+ " oldest client chunk ts: " + oldestChunkTs
-					+ ", newest server chunk ts: " + regionTs.timestamp());
-
-			if (requiresUpdate) {
-				outdatedRegions.add(regionPos);
-			}
-		}
+		var outdatedRegions = dimension.findOutdatedRegions(packet.getTimestamps());
+		debugLog(outdatedRegions.size() + " of " + packet.getTimestamps().length + " regions require update");
 
 		client.send(new ServerboundChunkTimestampsRequestPacket(packet.getDimension(), outdatedRegions));
 	}
 
+	/**
+	 * Starts comparing digests top-down: regions, then their sub-regions, then the chunks in those,
+	 * so only the parts that differ are listed in full.
+	 */
+	public void handleRegionDigests(ClientboundRegionDigestsPacket packet, SyncClient client) {
+		DimensionState dimension = getDimensionState();
+		if (dimension == null) return;
+		if (!dimension.dimension.location().toString().equals(packet.dimension)) {
+			return;
+		}
+		var differingRegions = dimension.findDifferingRegions(packet.regions, packet.digests);
+		debugLog(differingRegions.size() + " of " + packet.regions.length + " region digests differ");
+
+		for (int i = 0; i < differingRegions.size(); i += ServerboundSubRegionDigestsRequestPacket.MAX_REGIONS) {
+			var part = differingRegions.subList(i, Math.min(differingRegions.size(), i + ServerboundSubRegionDigestsRequestPacket.MAX_REGIONS));
+			client.send(new ServerboundSubRegionDigestsRequestPacket(packet.dimension, new ArrayList<>(part)));
+		}
+	}
+
+	public void handleSubRegionDigests(ClientboundSubRegionDigestsPacket packet, SyncClient client) {
+		DimensionState dimension = getDimensionState();
+		if (dimension == null) return;
+		if (!dimension.dimension.location().toString().equals(packet.dimension)) {
+			return;
+		}
+		var differingRegions = new ArrayList<RegionPos>();
+		var subRegionMasks = new ArrayList<Integer>();
+		for (int i = 0; i < packet.regions.length; i++) {
+			int mask = dimension.findDifferingSubRegions(packet.regions[i], packet.subRegionDigests[i]);
+			if (mask == 0) continue;
+			differingRegions.add(packet.regions[i]);
+			subRegionMasks.add(mask);
+		}
+		debugLog(differingRegions.size() + " of " + packet.regions.length + " regions have differing sub-regions");
+
+		for (int i = 0; i < differingRegions.size(); i += ServerboundChunkDigestsRequestPacket.MAX_REGIONS) {
+			int end = Math.min(differingRegions.size(), i + ServerboundChunkDigestsRequestPacket.MAX_REGIONS);
+			client.send(new ServerboundChunkDigestsRequestPacket(packet.dimension,
+					new ArrayList<>(differingRegions.subList(i, end)), new ArrayList<>(subRegionMasks.subList(i, end))));
+		}
+	}
+
+	public void handleChunkDigests(ClientboundChunkDigestsPacket packet, SyncClient client) {
+		var dimensionState = getDimensionState();
+		if (dimensionState == null) return;
+		if (dimensionState.dimension != packet.dimension) return;
+		var outdatedChunks = new CatchupChunks(packet.dimension, packet.chunkPositions.length);
+		dimensionState.findOutdatedChunks(packet.chunkPositions, packet.timestamps, packet.fingerprints, outdatedChunks);
+		debugLog(outdatedChunks.size() + " of " + packet.chunkPositions.length + " chunk digests are outdated " + client.address);
+		dimensionState.addCatchupChunks(outdatedChunks, client);
+	}
+
 	public void handleSharedChunk(ChunkTile chunkTile) {
 		debugLog("received shared chunk: " + chunkTile.chunkPos());
+		final long fingerprint = ServerKnownChunkHashes.fingerprint(chunkTile.dataHash());
 		for (SyncClient syncClient : getSyncClients()) {
-			syncClient.setServerKnownChunkHash(chunkTile.chunkPos(), chunkTile.dataHash());
+			syncClient.setServerKnownChunkHash(chunkTile.dimension(), chunkTile.chunkPos(), fingerprint);
 		}
 
 		var dimensionState = getDimensionState();
@@ -255,28 +416,23 @@ public abstract class MapSyncMod {
 		dimensionState.processSharedChunk(chunkTile);
 	}
 
-	public void handleCatchupData(ClientboundChunkTimestampsResponsePacket packet) {
+	public void handleCatchupData(ClientboundChunkTimestampsResponsePacket packet, SyncClient client) {
 		var dimensionState = getDimensionState();
 		if (dimensionState == null) return;
-		debugLog("received catchup: " + packet.chunks.size() + " " + packet.chunks.get(0).syncClient.address);
-		dimensionState.addCatchupChunks(packet.chunks);
+		debugLog("received catchup: " + packet.chunks.size() + " " + client.address);
+		dimensionState.addCatchupChunks(packet.chunks, client);
 	}
 
-	public void requestCatchupData(List<CatchupChunk> chunks) {
-		if (chunks == null || chunks.isEmpty()) {
+	public void requestCatchupData(Map<SyncClient, CatchupChunks> chunksBySource) {
+		if (chunksBySource == null || chunksBySource.isEmpty()) {
 			debugLog("not requesting more catchup: null/empty");
 			return;
 		}
 
-		debugLog("requesting more catchup: " + chunks.size());
-		var byServer = new HashMap<String, List<CatchupChunk>>();
-		for (CatchupChunk chunk : chunks) {
-			var list = byServer.computeIfAbsent(chunk.syncClient.address, (a) -> new ArrayList<>());
-			list.add(chunk);
-		}
-		for (List<CatchupChunk> chunksForServer : byServer.values()) {
-			SyncClient client = chunksForServer.get(0).syncClient;
-			client.send(new ServerboundCatchupRequestPacket(chunksForServer));
+		for (var entry : chunksBySource.entrySet()) {
+			debugLog("requesting more catchup: " + entry.getValue().size() + " from " + entry.getKey().address);
+			entry.getKey().getCatchupWindow().onRequestSent(entry.getValue().size());
+			entry.getKey().send(new ServerboundCatchupRequestPacket(entry.getValue()));
 		}
 	}
 
@@ -129,6 +129,11 @@ public class ModGui extends Screen {
 					statusText = "Connecting...";
 				}
 				statusText = client.address + "  " + statusText;
+				int queueDepth = client.getQueueDepth();
+				if (queueDepth > 0) statusText += "  (" + queueDepth + " queued)";
+				var catchupWindow = client.getCatchupWindow();
+				int numCatchupInFlight = catchupWindow.getNumInFlight();
+				if (numCatchupInFlight > 0) statusText += "  (catchup " + numCatchupInFlight + "/" + catchupWindow.getLimit() + ")";
 				drawString(poseStack, font, statusText, left, msgY, statusColor);
 				msgY += 10;
 			}
@@ -0,0 +1,119 @@
+package gjum.minecraft.mapsync.common;
+
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import gjum.minecraft.mapsync.common.net.ServerKnownChunkHashes;
+import net.minecraft.client.Minecraft;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static gjum.minecraft.mapsync.common.MapSyncMod.logger;
+
+/**
+ * Keeps the {@link ServerKnownChunkHashes} fingerprints of one sync server and dimension across restarts,
+ * in a memory-mapped {@link ChunkMetaDatabase} like the {@link DimensionChunkMeta} timestamps, at
+ * `.minecraft/MapSync/cache/{mcServerName}/{dimensionName}/known-hashes/{syncServerAddress}/{storageEpoch}.db`.
+ * Files of another epoch are from before the server was wiped, and are deleted when the epoch is set.
+ * The OS keeps only the recently used pages of it in memory.
+ */
+public class PersistedChunkHashes {
+	private final Path dirPath;
+	/**
+	 * 0 while unknown, or if the server doesn't tell; nothing is read or written then
+	 */
+	private long storageEpoch = 0;
+	/**
+	 * null while the epoch is unknown, after closing, or if it couldn't be opened
+	 */
+	private @Nullable ChunkMetaDatabase database;
+	private boolean isClosed = false;
+
+	public PersistedChunkHashes(@NotNull String mcServerName, @NotNull String dimensionName, @NotNull String syncServerAddress) {
+		final String mcRoot = Minecraft.getInstance().gameDirectory.getAbsolutePath();
+		dirPath = Path.of(mcRoot, "MapSync", "cache",
+				mcServerName.replaceAll(":", "~"), dimensionName.replaceAll(":", "~"),
+				"known-hashes", syncServerAddress.replaceAll(":", "~"));
+	}
+
+	/**
+	 * Opens the file of that epoch, and deletes those of all others.
+	 */
+	public synchronized void setStorageEpoch(long storageEpoch) {
+		if (isClosed || this.storageEpoch == storageEpoch) return;
+		closeDatabase();
+		this.storageEpoch = storageEpoch;
+		if (storageEpoch == 0) return;
+		final String fileName = storageEpoch + ".db";
+		try {
+			Files.createDirectories(dirPath);
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dirPath)) {
+				for (Path file : files) {
+					if (!file.getFileName().toString().startsWith(fileName)) Files.delete(file);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		final Path path = dirPath.resolve(fileName);
+		try {
+			database = new ChunkMetaDatabase(path);
+			return;
+		} catch (IOException e) {
+			logger.warn("[map-sync] Can't open known chunk hashes, starting anew: " + e.getMessage());
+		}
+		try {
+			Files.deleteIfExists(path);
+			database = new ChunkMetaDatabase(path);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return the fingerprint, or 0 if unknown
+	 */
+	public synchronized long get(@NotNull ChunkPos chunkPos) {
+		if (database == null) return 0;
+		try {
+			return database.get(RegionPos.forChunkPos(chunkPos), RegionPos.chunkIndex(chunkPos));
+		} catch (IllegalStateException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	public synchronized void set(@NotNull ChunkPos chunkPos, long fingerprint) {
+		if (database == null) return;
+		final var regionPos = RegionPos.forChunkPos(chunkPos);
+		try {
+			// don't allocate a region just to store that we know nothing
+			if (fingerprint == 0 && !database.hasRegion(regionPos)) return;
+			database.set(regionPos, RegionPos.chunkIndex(chunkPos), fingerprint);
+		} catch (IOException | IllegalStateException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * writes the changed pages to disk; nothing can be read or written afterwards
+	 */
+	public synchronized void close() {
+		isClosed = true;
+		closeDatabase();
+	}
+
+	private void closeDatabase() {
+		if (database == null) return;
+		try {
+			database.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		database = null;
+	}
+}
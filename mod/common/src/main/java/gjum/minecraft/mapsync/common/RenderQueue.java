@@ -82,7 +82,7 @@ public class RenderQueue {
 					debugLog("rendered? " + (voxelRendered||renderedJM) + " " + chunkTile.chunkPos() + " queue=" + queue.size());
 
 					if (renderedJM || voxelRendered) {
-						dimensionState.setChunkTimestamp(chunkTile.chunkPos(), chunkTile.timestamp());
+						dimensionState.setChunkTimestamp(chunkTile.chunkPos(), chunkTile.timestamp(), chunkTile.dataHash());
 					} // otherwise, update this chunk again when server sends it again
 				}
 
@@ -19,15 +19,18 @@ public class ModConfig extends JsonConfig {
 		saveLater();
 	}
 
+	/**
+	 * threads shared by the connections to all sync servers
+	 */
 	@Expose
-	private int catchupWatermark = 100;
+	private int networkThreads = 2;
 
-	public int getCatchupWatermark() {
-		return catchupWatermark;
+	public int getNetworkThreads() {
+		return Math.max(1, networkThreads);
 	}
 
-	public void setCatchupWatermark(int value) {
-		catchupWatermark = value;
+	public void setNetworkThreads(int value) {
+		networkThreads = value;
 		saveLater();
 	}
 
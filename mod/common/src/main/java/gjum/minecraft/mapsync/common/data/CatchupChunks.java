@@ -0,0 +1,53 @@
+package gjum.minecraft.mapsync.common.data;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Chunks of one dimension and their timestamps, as listed in catchup packets.
+ * Packed into primitive arrays, because there can be a whole world's worth of them.
+ */
+public final class CatchupChunks {
+	public final @NotNull ResourceKey<Level> dimension;
+	/**
+	 * {@link ChunkPos#toLong()}
+	 */
+	private long[] chunkPositions;
+	private long[] timestamps;
+	private int size = 0;
+
+	public CatchupChunks(@NotNull ResourceKey<Level> dimension, int capacity) {
+		this.dimension = dimension;
+		chunkPositions = new long[Math.max(1, capacity)];
+		timestamps = new long[chunkPositions.length];
+	}
+
+	public void add(long chunkPos, long timestamp) {
+		if (size == chunkPositions.length) {
+			chunkPositions = Arrays.copyOf(chunkPositions, size * 2);
+			timestamps = Arrays.copyOf(timestamps, size * 2);
+		}
+		chunkPositions[size] = chunkPos;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return {@link ChunkPos#toLong()} of the i-th chunk
+	 */
+	public long chunkPos(int i) {
+		return chunkPositions[i];
+	}
+
+	public long timestamp(int i) {
+		return timestamps[i];
+	}
+}
@@ -0,0 +1,116 @@
+package gjum.minecraft.mapsync.common.data;
+
+import net.minecraft.core.Holder;
+import net.minecraft.core.QuartPos;
+import net.minecraft.core.Registry;
+import net.minecraft.core.SectionPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.util.Mth;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.LightLayer;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.DataLayer;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.PalettedContainer;
+import net.minecraft.world.level.levelgen.Heightmap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Immutable copy of the parts of a {@link LevelChunk} that {@link gjum.minecraft.mapsync.common.Cartography} reads,
+ * so the column walk can run off the mc thread while mc keeps modifying the live chunk.
+ * Must be created on the mc thread.
+ */
+public record ChunkSnapshot(
+		ResourceKey<Level> dimension,
+		/* the level's, for the biome ids; the level may be gone by the time the snapshot is scanned */
+		Registry<Biome> biomeRegistry,
+		int x, int z,
+		long timestamp,
+		int minBuildHeight,
+		int minSection,
+		/* null for sections that contain only air */
+		@Nullable PalettedContainer<BlockState>[] states,
+		PalettedContainer<Holder<Biome>>[] biomes,
+		int minLightSection,
+		/* null for sections without block light */
+		@Nullable DataLayer[] blockLight,
+		/* WORLD_SURFACE height of each column, indexed x + 16 * z */
+		int[] heights
+) {
+	private static final BlockState AIR = Blocks.AIR.defaultBlockState();
+
+	@SuppressWarnings("unchecked")
+	public static @NotNull ChunkSnapshot of(@NotNull Level level, @NotNull LevelChunk chunk) {
+		long timestamp = System.currentTimeMillis();
+		var chunkPos = chunk.getPos();
+
+		LevelChunkSection[] sections = chunk.getSections();
+		var states = (PalettedContainer<BlockState>[]) new PalettedContainer[sections.length];
+		var biomes = (PalettedContainer<Holder<Biome>>[]) new PalettedContainer[sections.length];
+		for (int i = 0; i < sections.length; i++) {
+			var section = sections[i];
+			if (!section.hasOnlyAir()) states[i] = section.getStates().copy();
+			biomes[i] = section.getBiomes().copy();
+		}
+
+		var lightEngine = level.getLightEngine();
+		var blockLightListener = lightEngine.getLayerListener(LightLayer.BLOCK);
+		int minLightSection = lightEngine.getMinLightSection();
+		var blockLight = new DataLayer[lightEngine.getMaxLightSection() - minLightSection];
+		for (int i = 0; i < blockLight.length; i++) {
+			var dataLayer = blockLightListener.getDataLayerData(
+					SectionPos.of(chunkPos.x, minLightSection + i, chunkPos.z));
+			if (dataLayer != null) blockLight[i] = dataLayer.copy();
+		}
+
+		var heights = new int[256];
+		for (int z = 0; z < 16; z++) {
+			for (int x = 0; x < 16; x++) {
+				heights[x + 16 * z] = chunk.getHeight(Heightmap.Types.WORLD_SURFACE, x, z);
+			}
+		}
+
+		return new ChunkSnapshot(level.dimension(), level.registryAccess().registryOrThrow(Registry.BIOME_REGISTRY),
+				chunkPos.x, chunkPos.z, timestamp,
+				chunk.getMinBuildHeight(), chunk.getMinSection(),
+				states, biomes, minLightSection, blockLight, heights);
+	}
+
+	public int getHeight(int x, int z) {
+		return heights[(x & 0xf) + 16 * (z & 0xf)];
+	}
+
+	/**
+	 * same as {@link LevelChunk#getBlockState}: air outside the build height
+	 */
+	public @NotNull BlockState getBlockState(int x, int y, int z) {
+		int sectionIndex = (y >> 4) - minSection;
+		if (sectionIndex < 0 || sectionIndex >= states.length) return AIR;
+		var section = states[sectionIndex];
+		if (section == null) return AIR;
+		return section.get(x & 0xf, y & 0xf, z & 0xf);
+	}
+
+	/**
+	 * same as {@link LevelChunk#getNoiseBiome}: y is clamped to the build height
+	 */
+	public @NotNull Biome getNoiseBiome(int quartX, int quartY, int quartZ) {
+		int minQuart = QuartPos.fromBlock(minBuildHeight);
+		int maxQuart = minQuart + QuartPos.fromBlock(biomes.length * 16) - 1;
+		int clampedY = Mth.clamp(quartY, minQuart, maxQuart);
+		int sectionIndex = (QuartPos.toBlock(clampedY) >> 4) - minSection;
+		return biomes[sectionIndex].get(quartX & 3, clampedY & 3, quartZ & 3).value();
+	}
+
+	public int getBlockLight(int x, int y, int z) {
+		int sectionIndex = (y >> 4) - minLightSection;
+		if (sectionIndex < 0 || sectionIndex >= blockLight.length) return 0;
+		var dataLayer = blockLight[sectionIndex];
+		if (dataLayer == null) return 0;
+		return dataLayer.get(x & 0xf, y & 0xf, z & 0xf);
+	}
+}
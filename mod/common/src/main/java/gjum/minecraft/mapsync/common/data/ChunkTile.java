@@ -2,39 +2,81 @@ package gjum.minecraft.mapsync.common.data;
 
 import gjum.minecraft.mapsync.common.net.Packet;
 import gjum.minecraft.mapsync.common.utils.Arguments;
+import gjum.minecraft.mapsync.common.utils.Hasher;
 import gjum.minecraft.mapsync.common.utils.MagicValues;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import net.minecraft.core.Registry;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+/**
+ * @param encodedColumns the columns as written to the network, so they only get serialized once;
+ *                       null for tiles received from a sync server, which we never send again
+ */
 public record ChunkTile(
 		ResourceKey<Level> dimension,
 		int x, int z,
 		long timestamp,
 		int dataVersion,
 		byte[] dataHash,
-		BlockColumn[] columns
+		PackedColumns columns,
+		@Nullable EncodedColumns encodedColumns
 ) {
 	public ChunkTile {
 		Arguments.checkNotNull("dataHash", dataHash);
 		Arguments.checkLength("dataHash", dataHash.length, MagicValues.SHA1_HASH_LENGTH);
 	}
 
+	/**
+	 * Serializes the columns once, hashing them as they are written.
+	 */
+	public static @NotNull ChunkTile fromColumns(
+			ResourceKey<Level> dimension,
+			int x, int z,
+			long timestamp,
+			PackedColumns columns
+	) {
+		int dataVersion = PackedColumns.DATA_VERSION;
+		final var hasher = Hasher.sha1();
+		final ByteBuf columnsBuf = PooledByteBufAllocator.DEFAULT.heapBuffer(4096);
+		final int[] columnOffsets = new int[PackedColumns.NUM_COLUMNS + 1];
+		try {
+			for (int column = 0; column < PackedColumns.NUM_COLUMNS; column++) {
+				int start = columnsBuf.writerIndex();
+				columnOffsets[column] = start;
+				columns.writeColumn(column, columnsBuf);
+				hasher.update(columnsBuf, start, columnsBuf.writerIndex() - start);
+			}
+			columnOffsets[PackedColumns.NUM_COLUMNS] = columnsBuf.writerIndex();
+			// copy out of the pooled buffer, as the tile has no single owner that could release it
+			final byte[] packedColumns = new byte[columnsBuf.readableBytes()];
+			columnsBuf.getBytes(columnsBuf.readerIndex(), packedColumns);
+			return new ChunkTile(dimension, x, z, timestamp, dataVersion, hasher.generateHash(), columns,
+					new EncodedColumns(columns, packedColumns, columnOffsets));
+		} finally {
+			columnsBuf.release();
+		}
+	}
+
 	public ChunkPos chunkPos() {
 		return new ChunkPos(x, z);
 	}
 
 	public void write(ByteBuf buf) {
-		writeMetadata(buf);
-		writeColumns(columns, buf);
+		writeMetadata(buf, PackedColumns.DATA_VERSION);
+		writeColumns(buf);
 	}
 
 	/**
 	 * without columns
+	 *
+	 * @param dataVersion how the columns following the metadata are encoded
 	 */
-	public void writeMetadata(ByteBuf buf) {
+	public void writeMetadata(ByteBuf buf, int dataVersion) {
 		Packet.writeResourceKey(buf, dimension);
 		buf.writeInt(x);
 		buf.writeInt(z);
@@ -43,11 +85,17 @@ public record ChunkTile(
 		buf.writeBytes(dataHash);
 	}
 
-	public static void writeColumns(BlockColumn[] columns, ByteBuf buf) {
-		// TODO compress
-		for (BlockColumn column : columns) {
-			column.write(buf);
-		}
+	public void writeColumns(ByteBuf buf) {
+		writeColumns(buf, PackedColumns.DATA_VERSION);
+	}
+
+	/**
+	 * @param dataVersion anything but {@link PackedColumns#DATA_VERSION} requires {@link #encodedColumns}
+	 */
+	public void writeColumns(ByteBuf buf, int dataVersion) {
+		if (encodedColumns != null) buf.writeBytes(encodedColumns.get(dataVersion));
+		else if (dataVersion == PackedColumns.DATA_VERSION) columns.write(buf);
+		else throw new IllegalStateException("Can't encode received tile as data version " + dataVersion);
 	}
 
 	public static ChunkTile fromBuf(ByteBuf buf) {
@@ -57,10 +105,11 @@ public record ChunkTile(
 		long timestamp = buf.readLong();
 		int dataVersion = buf.readUnsignedShort();
 		byte[] hash = Packet.readByteArrayOfSize(buf, MagicValues.SHA1_HASH_LENGTH);
-		var columns = new BlockColumn[256];
-		for (int i = 0; i < 256; i++) {
-			columns[i] = BlockColumn.fromBuf(buf);
-		}
-		return new ChunkTile(dimension, x, z, timestamp, dataVersion, hash, columns);
+		var columns = switch (dataVersion) {
+			case PackedColumns.DATA_VERSION -> PackedColumns.fromBuf(buf);
+			case PaletteColumns.DATA_VERSION -> PaletteColumns.decode(ColumnCompression.decompress(buf));
+			default -> throw new IllegalArgumentException("Unknown tile data version " + dataVersion);
+		};
+		return new ChunkTile(dimension, x, z, timestamp, dataVersion, hash, columns, null);
 	}
 }
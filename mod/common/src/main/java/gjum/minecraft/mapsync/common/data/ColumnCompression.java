@@ -0,0 +1,67 @@
+package gjum.minecraft.mapsync.common.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib compression of the {@link PaletteColumns} bytes of tile data version 3.
+ * The tile hash is always computed over the uncompressed {@link PackedColumns#DATA_VERSION} bytes.
+ */
+public final class ColumnCompression {
+	/**
+	 * 256 columns of up to 127 layers, with room for the palettes and varints of version 3
+	 */
+	private static final int MAX_UNCOMPRESSED_SIZE = 4 * PackedColumns.NUM_COLUMNS * (4 + 4 * PackedColumns.MAX_WRITTEN_LAYERS);
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(Deflater::new);
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	public static byte @NotNull [] compress(byte @NotNull [] uncompressed) {
+		final Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setInput(uncompressed);
+		deflater.finish();
+		byte[] out = new byte[Math.max(64, uncompressed.length / 4)];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == out.length) out = Arrays.copyOf(out, out.length * 2);
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		return Arrays.copyOf(out, length);
+	}
+
+	/**
+	 * Inflates the compressed columns starting at the reader index, and advances the reader index past them.
+	 */
+	public static @NotNull ByteBuf decompress(@NotNull ByteBuf buf) {
+		final Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(buf.nioBuffer());
+		byte[] out = new byte[8192];
+		int length = 0;
+		try {
+			while (!inflater.finished()) {
+				if (length == out.length) {
+					if (length >= MAX_UNCOMPRESSED_SIZE) throw new DataFormatException("Tile data too large");
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+				int inflated = inflater.inflate(out, length, out.length - length);
+				if (inflated == 0) {
+					if (inflater.needsDictionary()) throw new DataFormatException("Tile data needs a preset dictionary");
+					if (inflater.needsInput()) throw new DataFormatException("Tile data is truncated");
+				}
+				length += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Invalid compressed tile data", e);
+		}
+		buf.skipBytes((int) inflater.getBytesRead());
+		return Unpooled.wrappedBuffer(out, 0, length);
+	}
+}
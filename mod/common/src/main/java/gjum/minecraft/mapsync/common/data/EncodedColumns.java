@@ -0,0 +1,83 @@
+package gjum.minecraft.mapsync.common.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The columns of a locally scanned {@link ChunkTile}, serialized in each tile data version we can send.
+ * Version 1 is encoded up front because the tile hash is computed over it.
+ * The others are encoded the first time a sync server needs them, then shared with all other servers.
+ */
+public final class EncodedColumns {
+	private final PackedColumns columns;
+	private final byte[] packed;
+	/**
+	 * column i is at columnOffsets[i] (inclusive) to columnOffsets[i + 1] (exclusive) in packed
+	 */
+	private final int[] columnOffsets;
+	private final long[] columnHashes;
+	private volatile byte[] paletted;
+
+	/**
+	 * @param packed        the columns in {@link PackedColumns#DATA_VERSION} format
+	 * @param columnOffsets where each column starts in packed, followed by packed.length
+	 */
+	public EncodedColumns(@NotNull PackedColumns columns, byte @NotNull [] packed, int @NotNull [] columnOffsets) {
+		this.columns = columns;
+		this.packed = packed;
+		this.columnOffsets = columnOffsets;
+		this.columnHashes = new long[PackedColumns.NUM_COLUMNS];
+		for (int column = 0; column < PackedColumns.NUM_COLUMNS; column++) {
+			columnHashes[column] = hashColumn(packed, columnOffsets[column], columnOffsets[column + 1]);
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a of each column's packed bytes, to find the columns that changed since an earlier tile.
+	 * Don't modify the returned array.
+	 */
+	public long @NotNull [] columnHashes() {
+		return columnHashes;
+	}
+
+	/**
+	 * writes the column in {@link PackedColumns#DATA_VERSION} format
+	 */
+	public void writeColumn(int column, @NotNull ByteBuf buf) {
+		buf.writeBytes(packed, columnOffsets[column], columnOffsets[column + 1] - columnOffsets[column]);
+	}
+
+	/**
+	 * Don't modify the returned array.
+	 */
+	public byte @NotNull [] get(int dataVersion) {
+		// concurrent first calls may both encode; they produce the same bytes, so either result is fine
+		switch (dataVersion) {
+			case PackedColumns.DATA_VERSION:
+				return packed;
+			case PaletteColumns.DATA_VERSION:
+				if (paletted == null) paletted = ColumnCompression.compress(PaletteColumns.encode(columns));
+				return paletted;
+			default:
+				throw new IllegalArgumentException("Unknown tile data version " + dataVersion);
+		}
+	}
+
+	/**
+	 * A new heap buffer over the array of {@link #get(int)}, so the bytes are written to each connection
+	 * without being copied before encryption. The array is shared with the other connections; don't modify it.
+	 */
+	public @NotNull ByteBuf buffer(int dataVersion) {
+		return Unpooled.wrappedBuffer(get(dataVersion));
+	}
+
+	private static long hashColumn(byte[] bytes, int start, int end) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = start; i < end; i++) {
+			hash ^= bytes[i] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,164 @@
+package gjum.minecraft.mapsync.common.data;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
+
+import java.util.Arrays;
+
+import static gjum.minecraft.mapsync.common.Utils.getBiomeRegistry;
+
+/**
+ * The 256 columns of a {@link ChunkTile}, packed into a few primitive arrays
+ * instead of an object per column and per layer. Read it through {@link BlockColumn} views.
+ * Columns are indexed x + 16 * z; each column's layers are ordered top-down.
+ */
+public final class PackedColumns {
+	/**
+	 * tile data version of {@link #write(ByteBuf)}'s format
+	 */
+	public static final int DATA_VERSION = 1;
+	public static final int NUM_COLUMNS = 256;
+	/**
+	 * the network format can only hold this many layers per column
+	 */
+	public static final int MAX_WRITTEN_LAYERS = 127;
+
+	private final short[] biomeIds;
+	private final byte[] lights;
+	/**
+	 * layers of column i are at layerOffsets[i] (inclusive) to layerOffsets[i + 1] (exclusive)
+	 */
+	private final int[] layerOffsets;
+	/**
+	 * (y << 16) | blockStateId
+	 */
+	private final int[] layers;
+
+	private PackedColumns(short[] biomeIds, byte[] lights, int[] layerOffsets, int[] layers) {
+		this.biomeIds = biomeIds;
+		this.lights = lights;
+		this.layerOffsets = layerOffsets;
+		this.layers = layers;
+	}
+
+	public BlockColumn column(int column) {
+		return new BlockColumn(this, column);
+	}
+
+	public int biomeId(int column) {
+		return biomeIds[column] & 0xffff;
+	}
+
+	public Biome biome(int column) {
+		return getBiomeRegistry().byId(biomeId(column));
+	}
+
+	public int light(int column) {
+		return lights[column] & 0xff;
+	}
+
+	public int layerCount(int column) {
+		return layerOffsets[column + 1] - layerOffsets[column];
+	}
+
+	public int layerY(int column, int layer) {
+		return layers[layerOffsets[column] + layer] >> 16;
+	}
+
+	public int layerStateId(int column, int layer) {
+		return layers[layerOffsets[column] + layer] & 0xffff;
+	}
+
+	public BlockState layerState(int column, int layer) {
+		return Block.BLOCK_STATE_REGISTRY.byId(layerStateId(column, layer));
+	}
+
+	public void write(ByteBuf buf) {
+		for (int column = 0; column < NUM_COLUMNS; column++) {
+			writeColumn(column, buf);
+		}
+	}
+
+	public void writeColumn(int column, ByteBuf buf) {
+		buf.writeShort(biomeIds[column]);
+		buf.writeByte(lights[column]);
+		int start = layerOffsets[column];
+		int numLayers = layerOffsets[column + 1] - start;
+		// write at most 127 layers, and always include the bottom layer
+		buf.writeByte(Math.min(MAX_WRITTEN_LAYERS, numLayers));
+		int numWritten = Math.min(MAX_WRITTEN_LAYERS - 1, numLayers);
+		for (int i = start; i < start + numWritten; i++) {
+			writeLayer(layers[i], buf);
+		}
+		if (numLayers >= MAX_WRITTEN_LAYERS) writeLayer(layers[start + numLayers - 1], buf);
+	}
+
+	private static void writeLayer(int layer, ByteBuf buf) {
+		buf.writeShort(layer >> 16);
+		buf.writeShort(layer); // we can assume the state id never becomes large enough to overflow
+	}
+
+	public static PackedColumns fromBuf(ByteBuf buf) {
+		var builder = new Builder();
+		for (int column = 0; column < NUM_COLUMNS; column++) {
+			int biomeId = buf.readUnsignedShort();
+			int light = buf.readUnsignedByte();
+			int numLayers = buf.readUnsignedByte();
+			for (int i = 0; i < numLayers; i++) {
+				int y = buf.readShort();
+				int stateId = buf.readUnsignedShort();
+				builder.addLayer(y, stateId);
+			}
+			builder.endColumn(biomeId, light);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Add each column's layers top-down, then end the column; columns in index order.
+	 * Not reusable after {@link #build()}.
+	 */
+	public static final class Builder {
+		private final short[] biomeIds = new short[NUM_COLUMNS];
+		private final byte[] lights = new byte[NUM_COLUMNS];
+		private final int[] layerOffsets = new int[NUM_COLUMNS + 1];
+		private int[] layers = new int[NUM_COLUMNS * 4];
+		private int numColumns = 0;
+		private int numLayers = 0;
+
+		public void addLayer(int y, BlockState state) {
+			addLayer(y, Block.BLOCK_STATE_REGISTRY.getId(state));
+		}
+
+		public void addLayer(int y, int stateId) {
+			if (numLayers == layers.length) layers = Arrays.copyOf(layers, layers.length * 2);
+			layers[numLayers++] = (y << 16) | (stateId & 0xffff);
+		}
+
+		/**
+		 * adds all layers of that column, then ends the column
+		 */
+		public void copyColumn(PackedColumns from, int column) {
+			for (int i = from.layerOffsets[column]; i < from.layerOffsets[column + 1]; i++) {
+				if (numLayers == layers.length) layers = Arrays.copyOf(layers, layers.length * 2);
+				layers[numLayers++] = from.layers[i];
+			}
+			endColumn(from.biomeIds[column], from.lights[column]);
+		}
+
+		public void endColumn(int biomeId, int light) {
+			biomeIds[numColumns] = (short) biomeId;
+			lights[numColumns] = (byte) light;
+			layerOffsets[++numColumns] = numLayers;
+		}
+
+		public PackedColumns build() {
+			if (numColumns != NUM_COLUMNS) {
+				throw new IllegalStateException("Expected " + NUM_COLUMNS + " columns but got " + numColumns);
+			}
+			return new PackedColumns(biomeIds, lights, layerOffsets, Arrays.copyOf(layers, numLayers));
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package gjum.minecraft.mapsync.common.data;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.jetbrains.annotations.NotNull;
+
+import static gjum.minecraft.mapsync.common.data.PackedColumns.MAX_WRITTEN_LAYERS;
+import static gjum.minecraft.mapsync.common.data.PackedColumns.NUM_COLUMNS;
+import static gjum.minecraft.mapsync.common.net.Packet.readVarInt;
+import static gjum.minecraft.mapsync.common.net.Packet.writeVarInt;
+
+/**
+ * Tile data version 3, before {@link ColumnCompression}: the palette of block states used in the tile,
+ * the palette of biomes, then the columns referencing them by index.
+ * Each layer's y is coded as the distance to the layer above it, and all numbers are varints,
+ * so a typical layer takes two bytes instead of four.
+ * Holds exactly the layers that {@link PackedColumns#write} would, so both decode to the same tile hash.
+ * Compressed with plain zlib, so the sync server can decode it too.
+ */
+public final class PaletteColumns {
+	public static final int DATA_VERSION = 3;
+
+	public static byte @NotNull [] encode(@NotNull PackedColumns columns) {
+		final var statePalette = new Palette();
+		final var biomePalette = new Palette();
+		final ByteBuf body = PooledByteBufAllocator.DEFAULT.heapBuffer(2048);
+		final ByteBuf out = PooledByteBufAllocator.DEFAULT.heapBuffer(2048);
+		try {
+			for (int column = 0; column < NUM_COLUMNS; column++) {
+				writeVarInt(body, biomePalette.indexOf(columns.biomeId(column)));
+				body.writeByte(columns.light(column));
+				int numLayers = columns.layerCount(column);
+				int numWritten = Math.min(MAX_WRITTEN_LAYERS, numLayers);
+				writeVarInt(body, numWritten);
+				int prevY = 0;
+				for (int i = 0; i < numWritten; i++) {
+					// like PackedColumns.writeColumn, always include the bottom layer
+					int layer = i == MAX_WRITTEN_LAYERS - 1 ? numLayers - 1 : i;
+					int y = columns.layerY(column, layer);
+					writeVarInt(body, statePalette.indexOf(columns.layerStateId(column, layer)));
+					writeVarInt(body, zigZag(prevY - y));
+					prevY = y;
+				}
+			}
+			statePalette.write(out);
+			biomePalette.write(out);
+			out.writeBytes(body);
+			final byte[] bytes = new byte[out.readableBytes()];
+			out.getBytes(out.readerIndex(), bytes);
+			return bytes;
+		} finally {
+			body.release();
+			out.release();
+		}
+	}
+
+	public static @NotNull PackedColumns decode(@NotNull ByteBuf buf) {
+		final int[] states = readPalette(buf);
+		final int[] biomes = readPalette(buf);
+		final var builder = new PackedColumns.Builder();
+		for (int column = 0; column < NUM_COLUMNS; column++) {
+			int biomeId = lookup(biomes, readVarInt(buf));
+			int light = buf.readUnsignedByte();
+			int numLayers = readVarInt(buf);
+			if (numLayers < 0 || numLayers > MAX_WRITTEN_LAYERS) {
+				throw new IllegalArgumentException("Invalid layer count " + numLayers);
+			}
+			int y = 0;
+			for (int i = 0; i < numLayers; i++) {
+				int stateId = lookup(states, readVarInt(buf));
+				y -= unZigZag(readVarInt(buf));
+				builder.addLayer(y, stateId);
+			}
+			builder.endColumn(biomeId, light);
+		}
+		return builder.build();
+	}
+
+	private static int[] readPalette(ByteBuf buf) {
+		int size = readVarInt(buf);
+		if (size < 0 || size > NUM_COLUMNS * MAX_WRITTEN_LAYERS) {
+			throw new IllegalArgumentException("Invalid palette size " + size);
+		}
+		final int[] palette = new int[size];
+		for (int i = 0; i < size; i++) {
+			palette[i] = readVarInt(buf);
+		}
+		return palette;
+	}
+
+	private static int lookup(int[] palette, int index) {
+		if (index < 0 || index >= palette.length) {
+			throw new IllegalArgumentException("Palette index " + index + " out of range " + palette.length);
+		}
+		return palette[index];
+	}
+
+	private static int zigZag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unZigZag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	/**
+	 * registry ids in order of first use
+	 */
+	private static final class Palette {
+		private final Int2IntOpenHashMap indices = new Int2IntOpenHashMap();
+		private final IntArrayList ids = new IntArrayList();
+
+		Palette() {
+			indices.defaultReturnValue(-1);
+		}
+
+		int indexOf(int id) {
+			int index = indices.get(id);
+			if (index == -1) {
+				index = ids.size();
+				indices.put(id, index);
+				ids.add(id);
+			}
+			return index;
+		}
+
+		void write(ByteBuf buf) {
+			writeVarInt(buf, ids.size());
+			for (int i = 0; i < ids.size(); i++) {
+				writeVarInt(buf, ids.getInt(i));
+			}
+		}
+	}
+}
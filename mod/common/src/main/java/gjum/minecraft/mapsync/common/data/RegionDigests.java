@@ -0,0 +1,55 @@
+package gjum.minecraft.mapsync.common.data;
+
+/**
+ * Merkle-style digests of a region's chunk data, so regions can be compared with the sync server's
+ * without listing every chunk, and only the parts that differ are looked at more closely.
+ * Each region of 32×32 chunks is split into 4×4 sub-regions of 8×8 chunks.
+ * A chunk's leaf mixes its {@link RegionPos#chunkIndex} with the fingerprint of its data hash;
+ * a sub-region's digest is the XOR of its chunks' leaves, so it can be updated in place when one chunk changes,
+ * and a region's digest is the XOR of its sub-regions' digests.
+ * Must match the sync server's digests.ts; both are checked against the test vectors in its digests.vectors.json.
+ */
+public final class RegionDigests {
+	public static final int SUB_REGIONS_PER_REGION = 16;
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private RegionDigests() {
+	}
+
+	/**
+	 * @param chunkIndex {@link RegionPos#chunkIndex}
+	 */
+	public static int subRegionIndex(int chunkIndex) {
+		return ((chunkIndex & 31) >> 3) + 4 * (chunkIndex >> 8);
+	}
+
+	/**
+	 * @param fingerprint see {@link gjum.minecraft.mapsync.common.net.ServerKnownChunkHashes#fingerprint(byte[])}; 0 if there's no chunk
+	 * @return 0 if there's no chunk, so absent chunks don't change the digest
+	 */
+	public static long leaf(int chunkIndex, long fingerprint) {
+		if (fingerprint == 0) return 0;
+		return mix(fingerprint + chunkIndex * GOLDEN_GAMMA);
+	}
+
+	/**
+	 * @param subRegionDigests {@link #SUB_REGIONS_PER_REGION} of them
+	 */
+	public static long regionDigest(long[] subRegionDigests) {
+		long digest = 0;
+		for (long subRegionDigest : subRegionDigests) {
+			digest ^= subRegionDigest;
+		}
+		return digest;
+	}
+
+	/**
+	 * splitmix64's finalizer
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -7,11 +7,19 @@ public record RegionPos(int x, int z) {
   public static final int CHUNKS_IN_REGION = 32 * 32;
 
   public static RegionPos forChunkPos(ChunkPos pos) {
-    return new RegionPos(pos.x >> 5, pos.z >> 5);
+    return forChunkPos(pos.x, pos.z);
+  }
+
+  public static RegionPos forChunkPos(int chunkX, int chunkZ) {
+    return new RegionPos(chunkX >> 5, chunkZ >> 5);
   }
 
   public static int chunkIndex(ChunkPos pos) {
-    return (pos.x & 0b11111) + 32 * (pos.z & 0b11111);
+    return chunkIndex(pos.x, pos.z);
+  }
+
+  public static int chunkIndex(int chunkX, int chunkZ) {
+    return (chunkX & 0b11111) + 32 * (chunkZ & 0b11111);
   }
 
 }
\ No newline at end of file
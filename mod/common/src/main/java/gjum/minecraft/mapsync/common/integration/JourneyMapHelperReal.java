@@ -74,7 +74,7 @@ public class JourneyMapHelperReal {
 		private BlockColumn getCol(int x, int z) {
 			int xic = x & 0xf;
 			int zic = z & 0xf;
-			return chunkTile.columns()[xic + zic * 16];
+			return chunkTile.columns().column(xic + zic * 16);
 		}
 
 		private BlockColumn getCol(BlockPos pos) {
@@ -83,22 +83,22 @@ public class JourneyMapHelperReal {
 
 		@Override
 		public BlockState getBlockState(BlockPos pos) {
-			var layers = getCol(pos.getX(), pos.getZ()).layers();
-			BlockInfo prevLayer = null;
+			var col = getCol(pos.getX(), pos.getZ());
+			int numLayers = col.layerCount();
 			// note that layers are ordered top-down
-			for (BlockInfo layer : layers) {
-				if (layer.y() == pos.getY()) {
-					return layer.state();
+			for (int i = 0; i < numLayers; i++) {
+				int layerY = col.layerY(i);
+				if (layerY == pos.getY()) {
+					return col.layerState(i);
 				}
-				if (layer.y() < pos.getY()) {
-					// top of layer is below pos, so pos is inside prevLayer
-					if (prevLayer == null) return Blocks.AIR.defaultBlockState(); // first layer is already below pos
-					return prevLayer.state();
+				if (layerY < pos.getY()) {
+					// top of layer is below pos, so pos is inside previous layer
+					if (i == 0) return Blocks.AIR.defaultBlockState(); // first layer is already below pos
+					return col.layerState(i - 1);
 				}
-				prevLayer = layer;
 			}
-			if (layers.isEmpty()) return Blocks.AIR.defaultBlockState();
-			return layers.get(layers.size() - 1).state();
+			if (numLayers == 0) return Blocks.AIR.defaultBlockState();
+			return col.layerState(numLayers - 1);
 		}
 
 		@Override
@@ -108,7 +108,7 @@ public class JourneyMapHelperReal {
 
 		@Override
 		public Integer getTopY(BlockPos pos) {
-			return getCol(pos.getX(), pos.getZ()).layers().get(0).y();
+			return getCol(pos.getX(), pos.getZ()).layerY(0);
 		}
 
 		@Override
@@ -2,10 +2,11 @@ package gjum.minecraft.mapsync.common.integration;
 
 import com.mamiyaotaru.voxelmap.interfaces.AbstractVoxelMap;
 import com.mamiyaotaru.voxelmap.persistent.*;
-import gjum.minecraft.mapsync.common.data.BlockInfo;
+import gjum.minecraft.mapsync.common.data.BlockColumn;
 import gjum.minecraft.mapsync.common.data.ChunkTile;
 import net.minecraft.client.multiplayer.ClientLevel;
 import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
 import net.minecraft.world.level.material.Material;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -15,8 +16,6 @@ import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
-import static gjum.minecraft.mapsync.common.Utils.getBiomeRegistry;
-
 public class VoxelMapHelperReal {
 	// TODO use mixins to access package-/private fields/methods
 
@@ -89,14 +88,12 @@ public class VoxelMapHelperReal {
 				int x0 = (chunkTile.x() * 16) & 0xff;
 				int z0 = (chunkTile.z() * 16) & 0xff;
 
-				var biomeReg = getBiomeRegistry();
-
 				int i = 0;
 				for (int z = z0; z < z0 + 16; ++z) {
 					for (int x = x0; x < x0 + 16; ++x) {
-						var col = chunkTile.columns()[i++];
+						var col = chunkTile.columns().column(i++);
 
-						mapData.setBiomeID(x, z, biomeReg.getId(col.biome()));
+						mapData.setBiomeID(x, z, col.biomeId());
 
 						int light = 0xf0 | col.light();
 						mapData.setTransparentLight(x, z, light);
@@ -104,7 +101,7 @@ public class VoxelMapHelperReal {
 						mapData.setLight(x, z, light);
 						mapData.setOceanFloorLight(x, z, light);
 
-						setLayerStates(mapData, x, z, col.layers());
+						setLayerStates(mapData, x, z, col);
 					}
 				}
 
@@ -124,30 +121,36 @@ public class VoxelMapHelperReal {
 		}
 	}
 
-	private static final BlockInfo EMPTY = new BlockInfo(0, Blocks.AIR.defaultBlockState());
+	private static final BlockState AIR = Blocks.AIR.defaultBlockState();
 
-	private static void setLayerStates(CompressibleMapData mapData, int x, int z, List<BlockInfo> layers) {
-		BlockInfo transparent = EMPTY;
-		BlockInfo foliage = EMPTY;
-		BlockInfo surface = EMPTY;
-		BlockInfo seafloor = EMPTY;
+	private static void setLayerStates(CompressibleMapData mapData, int x, int z, BlockColumn col) {
+		int transparentY = 0;
+		BlockState transparentState = AIR;
+		int foliageY = 0;
+		BlockState foliageState = AIR;
+		int seafloorY = 0;
+		BlockState seafloorState = AIR;
 
 		// XXX
-		if (layers.size() > 1) transparent = layers.get(0);
-		surface = layers.get(layers.size() - 1);
+		int numLayers = col.layerCount();
+		if (numLayers > 1) {
+			transparentY = col.layerY(0);
+			transparentState = col.layerState(0);
+		}
+		int surface = numLayers - 1;
 		// trees hack
-		if (layers.get(0).state().getMaterial() == Material.LEAVES) {
-			surface = layers.get(0);
+		if (col.layerState(0).getMaterial() == Material.LEAVES) {
+			surface = 0;
 		}
 
-		mapData.setTransparentHeight(x, z, transparent.y());
-		mapData.setTransparentBlockstate(x, z, transparent.state());
-		mapData.setFoliageHeight(x, z, foliage.y());
-		mapData.setFoliageBlockstate(x, z, foliage.state());
-		mapData.setHeight(x, z, surface.y());
-		mapData.setBlockstate(x, z, surface.state());
-		mapData.setOceanFloorHeight(x, z, seafloor.y());
-		mapData.setOceanFloorBlockstate(x, z, seafloor.state());
+		mapData.setTransparentHeight(x, z, transparentY);
+		mapData.setTransparentBlockstate(x, z, transparentState);
+		mapData.setFoliageHeight(x, z, foliageY);
+		mapData.setFoliageBlockstate(x, z, foliageState);
+		mapData.setHeight(x, z, col.layerY(surface));
+		mapData.setBlockstate(x, z, col.layerState(surface));
+		mapData.setOceanFloorHeight(x, z, seafloorY);
+		mapData.setOceanFloorBlockstate(x, z, seafloorState);
 	}
 
 	@NotNull
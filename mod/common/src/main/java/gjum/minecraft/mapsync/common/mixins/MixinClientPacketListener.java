@@ -2,7 +2,6 @@ package gjum.minecraft.mapsync.common.mixins;
 
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.multiplayer.ClientPacketListener;
-import net.minecraft.core.BlockPos;
 import net.minecraft.network.protocol.game.*;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
@@ -50,8 +49,7 @@ public abstract class MixinClientPacketListener {
 	protected void onHandleBlockUpdate(ClientboundBlockUpdatePacket packet, CallbackInfo ci) {
 		if (!Minecraft.getInstance().isSameThread()) return; // will be called again on mc thread in a moment
 		try {
-			BlockPos pos = packet.getPos();
-			getMod().handleMcChunkPartialChange(pos.getX() >> 4, pos.getZ() >> 4);
+			getMod().handleMcChunkPartialChange(packet.getPos());
 		} catch (Throwable e) {
 			printErrorRateLimited(e);
 		}
@@ -61,8 +59,7 @@ public abstract class MixinClientPacketListener {
 	protected void onHandleBlockDestruction(ClientboundBlockDestructionPacket packet, CallbackInfo ci) {
 		if (!Minecraft.getInstance().isSameThread()) return; // will be called again on mc thread in a moment
 		try {
-			BlockPos pos = packet.getPos();
-			getMod().handleMcChunkPartialChange(pos.getX() >> 4, pos.getZ() >> 4);
+			getMod().handleMcChunkPartialChange(packet.getPos());
 		} catch (Throwable e) {
 			printErrorRateLimited(e);
 		}
@@ -72,8 +69,7 @@ public abstract class MixinClientPacketListener {
 	protected void onHandleBlockBreakAck(ClientboundBlockBreakAckPacket packet, CallbackInfo ci) {
 		if (!Minecraft.getInstance().isSameThread()) return; // will be called again on mc thread in a moment
 		try {
-			BlockPos pos = packet.pos();
-			getMod().handleMcChunkPartialChange(pos.getX() >> 4, pos.getZ() >> 4);
+			getMod().handleMcChunkPartialChange(packet.pos());
 		} catch (Throwable e) {
 			printErrorRateLimited(e);
 		}
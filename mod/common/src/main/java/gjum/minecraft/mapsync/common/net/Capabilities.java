@@ -0,0 +1,48 @@
+package gjum.minecraft.mapsync.common.net;
+
+/**
+ * Optional protocol features, as a bit set.
+ * The client lists the ones it supports in {@link gjum.minecraft.mapsync.common.net.packet.ServerboundHandshakePacket},
+ * and the server replies with the ones it accepted in {@link gjum.minecraft.mapsync.common.net.packet.ClientboundEncryptionRequestPacket}.
+ * Servers that don't know about capabilities accept none of them.
+ * Bit 1 was tile data version 2, which the server couldn't decode; it's not reused, so older servers don't mistake it.
+ */
+public final class Capabilities {
+	/**
+	 * tile data version 3, see {@link gjum.minecraft.mapsync.common.data.PaletteColumns}
+	 */
+	public static final int TILE_PALETTE = 2;
+
+	/**
+	 * {@link gjum.minecraft.mapsync.common.net.packet.ServerboundChunkTileDeltaPacket},
+	 * and {@link gjum.minecraft.mapsync.common.net.packet.ClientboundChunkTileRejectedPacket} when one can't be applied
+	 */
+	public static final int TILE_DELTA = 4;
+
+	/**
+	 * {@link gjum.minecraft.mapsync.common.net.packet.ServerboundChunkTileBatchPacket}
+	 */
+	public static final int TILE_BATCH = 8;
+
+	/**
+	 * AES/CTR instead of AES/CFB8, see {@link gjum.minecraft.mapsync.common.net.encryption.ConnectionCiphers}
+	 */
+	public static final int ENCRYPTION_CTR = 16;
+
+	/**
+	 * {@link gjum.minecraft.mapsync.common.net.packet.ClientboundEncryptionRequestPacket#storageEpoch}
+	 */
+	public static final int STORAGE_EPOCH = 32;
+
+	/**
+	 * {@link gjum.minecraft.mapsync.common.net.packet.ClientboundRegionDigestsPacket} instead of
+	 * {@link gjum.minecraft.mapsync.common.net.packet.ClientboundRegionTimestampsPacket}
+	 */
+	public static final int REGION_DIGESTS = 64;
+
+	public static final int SUPPORTED = TILE_PALETTE | TILE_DELTA | TILE_BATCH | ENCRYPTION_CTR | STORAGE_EPOCH | REGION_DIGESTS;
+
+	public static boolean has(int capabilities, int capability) {
+		return (capabilities & capability) == capability;
+	}
+}
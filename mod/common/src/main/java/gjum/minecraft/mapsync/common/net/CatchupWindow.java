@@ -0,0 +1,152 @@
+package gjum.minecraft.mapsync.common.net;
+
+/**
+ * How many catchup chunks to have requested from one sync server and not received yet.
+ * The window is split into several requests, so the next ones are already on their way
+ * while the server answers the first, and the connection doesn't sit idle for a round trip after each.
+ * <p>
+ * The catchup backlog knows which chunks are in flight and from which server,
+ * so it reports each one here when it arrives, times out, or isn't wanted anymore.
+ * The server may skip chunks it can't send, so nothing here depends on the order or number of tiles per request.
+ * <p>
+ * Adjusted like TCP congestion control: it doubles every round trip at first, and grows linearly
+ * after the first decrease. It halves (at most once per round trip) when the render queue can't keep up,
+ * see {@link #onCongestion()}, or when a chunk isn't received in time.
+ * It is also capped at a few times the measured round trip time multiplied by the tile arrival rate.
+ * Thread-safe.
+ */
+public class CatchupWindow {
+	/**
+	 * what used to be requested at once, before the window was measured
+	 */
+	private static final int INITIAL_WINDOW = 100;
+	private static final int MIN_WINDOW = 16;
+	private static final int MAX_WINDOW = 4096;
+	/**
+	 * chunks the window grows by per round trip, after slow start
+	 */
+	private static final int ADDITIVE_INCREASE = 32;
+	private static final int PIPELINE_DEPTH = 4;
+	/**
+	 * how much more than the bandwidth-delay product may be in flight
+	 */
+	private static final double BDP_GAIN = 2;
+	private static final long MIN_TIMEOUT_NS = 5_000_000_000L;
+	private static final long MIN_DECREASE_INTERVAL_NS = 1_000_000_000L;
+
+	private double window = INITIAL_WINDOW;
+	private boolean isSlowStart = true;
+	private int numInFlight = 0;
+	/**
+	 * smoothed; -1 until measured
+	 */
+	private double rttNs = -1;
+	/**
+	 * smoothed time between tiles while requests are pending; -1 until measured
+	 */
+	private double arrivalIntervalNs = -1;
+	private long lastArrivalAt = 0;
+	private long lastDecreaseAt = 0;
+	/**
+	 * the round trip is measured by the first chunk received of each request
+	 */
+	private long lastSampledRequestAt = 0;
+
+	/**
+	 * @return how many chunks to request now; 0 if enough are in flight
+	 */
+	public synchronized int getRequestSize() {
+		final int limit = getLimit();
+		final int requestSize = Math.max(1, limit / PIPELINE_DEPTH);
+		if (numInFlight + requestSize > limit) return 0;
+		return requestSize;
+	}
+
+	public synchronized void onRequestSent(int numChunks) {
+		numInFlight += numChunks;
+	}
+
+	/**
+	 * @param requestedAt {@link System#nanoTime()} when the chunk was requested
+	 */
+	public synchronized void onChunkReceived(long requestedAt) {
+		numInFlight = Math.max(0, numInFlight - 1);
+		final long now = System.nanoTime();
+		arrivalIntervalNs = smooth(arrivalIntervalNs, now - Math.max(lastArrivalAt, requestedAt));
+		lastArrivalAt = now;
+		if (requestedAt > lastSampledRequestAt) {
+			lastSampledRequestAt = requestedAt;
+			rttNs = smooth(rttNs, now - requestedAt);
+		}
+		if (isSlowStart) window += 1;
+		else window += ADDITIVE_INCREASE / window;
+		window = Math.min(window, MAX_WINDOW);
+	}
+
+	/**
+	 * the chunk wasn't received within {@link #getTimeoutNs()}
+	 */
+	public synchronized void onChunkTimedOut() {
+		numInFlight = Math.max(0, numInFlight - 1);
+		decrease(System.nanoTime());
+	}
+
+	/**
+	 * the chunk isn't waited for anymore, e.g. because a newer version of it is known now
+	 */
+	public synchronized void onChunkCancelled() {
+		numInFlight = Math.max(0, numInFlight - 1);
+	}
+
+	/**
+	 * the chunks received so far can't be rendered as fast as they come in
+	 */
+	public synchronized void onCongestion() {
+		decrease(System.nanoTime());
+	}
+
+	/**
+	 * requests on a closed connection won't be answered
+	 */
+	public synchronized void reset() {
+		numInFlight = 0;
+	}
+
+	public synchronized int getNumInFlight() {
+		return numInFlight;
+	}
+
+	public synchronized int getLimit() {
+		int limit = (int) window;
+		if (rttNs > 0 && arrivalIntervalNs > 0) {
+			limit = Math.min(limit, (int) (BDP_GAIN * rttNs / arrivalIntervalNs));
+		}
+		return Math.max(MIN_WINDOW, limit);
+	}
+
+	/**
+	 * how long until chunks requested now are expected to arrive; lower is better, 0 while not measured yet
+	 */
+	public synchronized double getExpectedDelayNs() {
+		return Math.max(0, rttNs) + numInFlight * Math.max(0, arrivalIntervalNs);
+	}
+
+	/**
+	 * after this, a requested chunk is given up on
+	 */
+	public synchronized long getTimeoutNs() {
+		return Math.max(MIN_TIMEOUT_NS, (long) (4 * rttNs));
+	}
+
+	private void decrease(long now) {
+		if (now - lastDecreaseAt < Math.max(MIN_DECREASE_INTERVAL_NS, rttNs)) return;
+		lastDecreaseAt = now;
+		window = Math.max(MIN_WINDOW, window / 2);
+		isSlowStart = false;
+	}
+
+	private static double smooth(double previous, double sample) {
+		if (previous < 0) return sample;
+		return previous + (sample - previous) / 8;
+	}
+}
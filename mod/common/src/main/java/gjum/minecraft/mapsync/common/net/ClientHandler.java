@@ -1,6 +1,5 @@
 package gjum.minecraft.mapsync.common.net;
 
-import gjum.minecraft.mapsync.common.data.CatchupChunk;
 import gjum.minecraft.mapsync.common.net.packet.*;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -32,10 +31,15 @@ public class ClientHandler extends ChannelInboundHandlerAdapter {
 			} else if (packet instanceof ClientboundRegionTimestampsPacket pktRegionTimestamps) {
 				getMod().handleRegionTimestamps(pktRegionTimestamps, client);
 			} else if (packet instanceof ClientboundChunkTimestampsResponsePacket pktCatchup) {
-				for (CatchupChunk chunk : pktCatchup.chunks) {
-					chunk.syncClient = this.client;
-				}
-				getMod().handleCatchupData((ClientboundChunkTimestampsResponsePacket) packet);
+				getMod().handleCatchupData(pktCatchup, client);
+			} else if (packet instanceof ClientboundChunkTileRejectedPacket pktRejected) {
+				client.handleChunkTileRejected(pktRejected);
+			} else if (packet instanceof ClientboundRegionDigestsPacket pktRegionDigests) {
+				getMod().handleRegionDigests(pktRegionDigests, client);
+			} else if (packet instanceof ClientboundSubRegionDigestsPacket pktSubRegionDigests) {
+				getMod().handleSubRegionDigests(pktSubRegionDigests, client);
+			} else if (packet instanceof ClientboundChunkDigestsPacket pktChunkDigests) {
+				getMod().handleChunkDigests(pktChunkDigests, client);
 			} else throw new Error("Expected packet, got " + packet);
 		} catch (Throwable err) {
 			err.printStackTrace();
@@ -54,9 +58,15 @@ public class ClientHandler extends ChannelInboundHandlerAdapter {
 		super.exceptionCaught(ctx, err);
 	}
 
+	@Override
+	public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+		if (ctx.channel().isWritable()) client.handleWritable();
+		super.channelWritabilityChanged(ctx);
+	}
+
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-		client.handleDisconnect(new RuntimeException("Channel inactive"));
+		client.handleDisconnect(ctx.channel(), new RuntimeException("Channel inactive"));
 		super.channelInactive(ctx);
 	}
 }
@@ -3,17 +3,24 @@ package gjum.minecraft.mapsync.common.net;
 import gjum.minecraft.mapsync.common.net.packet.*;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.MessageToMessageDecoder;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.List;
 
-public class ClientboundPacketDecoder extends ReplayingDecoder<Void> {
+/**
+ * Receives whole frames from the frame decoder, so packets can tell when optional trailing fields are absent.
+ */
+public class ClientboundPacketDecoder extends MessageToMessageDecoder<ByteBuf> {
 	public static @Nullable Packet constructServerPacket(int id, ByteBuf buf) {
 		if (id == ChunkTilePacket.PACKET_ID) return ChunkTilePacket.read(buf);
 		if (id == ClientboundEncryptionRequestPacket.PACKET_ID) return ClientboundEncryptionRequestPacket.read(buf);
 		if (id == ClientboundChunkTimestampsResponsePacket.PACKET_ID) return ClientboundChunkTimestampsResponsePacket.read(buf);
 		if (id == ClientboundRegionTimestampsPacket.PACKET_ID) return ClientboundRegionTimestampsPacket.read(buf);
+		if (id == ClientboundRegionDigestsPacket.PACKET_ID) return ClientboundRegionDigestsPacket.read(buf);
+		if (id == ClientboundSubRegionDigestsPacket.PACKET_ID) return ClientboundSubRegionDigestsPacket.read(buf);
+		if (id == ClientboundChunkDigestsPacket.PACKET_ID) return ClientboundChunkDigestsPacket.read(buf);
+		if (id == ClientboundChunkTileRejectedPacket.PACKET_ID) return ClientboundChunkTileRejectedPacket.read(buf);
 		return null;
 	}
 
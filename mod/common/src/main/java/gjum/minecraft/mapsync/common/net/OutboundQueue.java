@@ -0,0 +1,144 @@
+package gjum.minecraft.mapsync.common.net;
+
+import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.net.packet.*;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static gjum.minecraft.mapsync.common.MapSyncMod.debugLog;
+
+/**
+ * Packets waiting to be written to a sync server, because the connection isn't encrypted yet
+ * or the channel isn't writable. Handshake and other control packets go first,
+ * then catchup requests, then chunk uploads.
+ * Only the newest upload of each chunk is kept; when the queue is full, the oldest uploads are dropped first,
+ * and the tiles in them are passed to the drop handler, as the server won't have them.
+ * Not thread-safe; {@link SyncClient} guards it.
+ */
+class OutboundQueue {
+	private static final int MAX_QUEUED_PACKETS = 1000;
+
+	private final ArrayDeque<Packet> control = new ArrayDeque<>();
+	private final ArrayDeque<Packet> catchup = new ArrayDeque<>();
+	/**
+	 * insertion-ordered; full tiles and deltas are keyed by their chunk, batches by themselves
+	 */
+	private final LinkedHashMap<Object, Packet> uploads = new LinkedHashMap<>();
+
+	/**
+	 * how many queued batches contain each chunk
+	 */
+	private final Object2IntOpenHashMap<ChunkKey> batchedChunks = new Object2IntOpenHashMap<>();
+
+	private record ChunkKey(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+	}
+
+	private final Consumer<ChunkTile> onUploadDropped;
+	private int numDropped = 0;
+
+	OutboundQueue(@NotNull Consumer<ChunkTile> onUploadDropped) {
+		this.onUploadDropped = onUploadDropped;
+	}
+
+	public void add(@NotNull Packet packet) {
+		if (packet instanceof ChunkTilePacket pktChunkTile) {
+			var tile = pktChunkTile.chunkTile;
+			var key = new ChunkKey(tile.dimension(), tile.chunkPos());
+			// also replaces a queued delta: the full tile doesn't need its base
+			if (uploads.remove(key) != null) debugLog("replacing queued upload of " + tile.chunkPos());
+			uploads.put(key, packet);
+		} else if (packet instanceof ServerboundChunkTileDeltaPacket pktDelta) {
+			// SyncClient sends a full tile instead when there's one queued already, see hasUpload()
+			var tile = pktDelta.chunkTile;
+			uploads.put(new ChunkKey(tile.dimension(), tile.chunkPos()), packet);
+		} else if (packet instanceof ServerboundChunkTileBatchPacket pktBatch) {
+			uploads.put(packet, packet);
+			for (ChunkTile tile : pktBatch.chunkTiles) {
+				batchedChunks.addTo(new ChunkKey(tile.dimension(), tile.chunkPos()), 1);
+			}
+		} else if (packet instanceof ServerboundCatchupRequestPacket
+				|| packet instanceof ServerboundChunkTimestampsRequestPacket) {
+			catchup.add(packet);
+		} else {
+			control.add(packet);
+		}
+		trim();
+	}
+
+	/**
+	 * @return the next packet to write, or null if the queue is empty
+	 */
+	public @Nullable Packet poll() {
+		if (!control.isEmpty()) return control.poll();
+		if (!catchup.isEmpty()) return catchup.poll();
+		if (uploads.isEmpty()) return null;
+		return pollUpload();
+	}
+
+	/**
+	 * whether a full tile or delta of that chunk is still waiting, alone or in a batch
+	 */
+	public boolean hasUpload(@NotNull ResourceKey<Level> dimension, @NotNull ChunkPos chunkPos) {
+		final var key = new ChunkKey(dimension, chunkPos);
+		return uploads.containsKey(key) || batchedChunks.containsKey(key);
+	}
+
+	public int size() {
+		return control.size() + catchup.size() + uploads.size();
+	}
+
+	/**
+	 * since the client was created
+	 */
+	public int getNumDropped() {
+		return numDropped;
+	}
+
+	/**
+	 * don't let the queue occupy too much memory; control packets are never dropped
+	 */
+	private void trim() {
+		int numDroppedBefore = numDropped;
+		while (size() > MAX_QUEUED_PACKETS && !(uploads.isEmpty() && catchup.isEmpty())) {
+			if (!uploads.isEmpty()) {
+				getTiles(pollUpload()).forEach(onUploadDropped);
+			} else {
+				catchup.poll();
+			}
+			numDropped++;
+		}
+		if (numDropped > numDroppedBefore && (numDroppedBefore == 0 || numDropped / 100 > numDroppedBefore / 100)) {
+			SyncClient.logger.warn("[map-sync] Outbound queue is full, dropped " + numDropped + " packets so far");
+		}
+	}
+
+	private Packet pollUpload() {
+		Iterator<Packet> it = uploads.values().iterator();
+		var packet = it.next();
+		it.remove();
+		if (packet instanceof ServerboundChunkTileBatchPacket pktBatch) {
+			for (ChunkTile tile : pktBatch.chunkTiles) {
+				final var key = new ChunkKey(tile.dimension(), tile.chunkPos());
+				if (batchedChunks.addTo(key, -1) == 1) batchedChunks.removeInt(key);
+			}
+		}
+		return packet;
+	}
+
+	private static List<ChunkTile> getTiles(Packet upload) {
+		if (upload instanceof ChunkTilePacket pktChunkTile) return List.of(pktChunkTile.chunkTile);
+		if (upload instanceof ServerboundChunkTileDeltaPacket pktDelta) return List.of(pktDelta.chunkTile);
+		if (upload instanceof ServerboundChunkTileBatchPacket pktBatch) return pktBatch.chunkTiles;
+		return List.of();
+	}
+}
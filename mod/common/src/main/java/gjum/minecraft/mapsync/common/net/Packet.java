@@ -13,6 +13,16 @@ public interface Packet {
 		throw new NotImplementedException();
 	}
 
+	/**
+	 * Like {@link #write(ByteBuf)}, but packets holding already-encoded data may return
+	 * a composite of `out` and that data, instead of copying it into `out`.
+	 * The returned buffer takes over the reference to `out`.
+	 */
+	default @NotNull ByteBuf writeZeroCopy(@NotNull ByteBuf out) {
+		write(out);
+		return out;
+	}
+
 	static byte @NotNull [] readByteArrayOfSize(
 			final @NotNull ByteBuf in,
 			final int size
@@ -81,4 +91,33 @@ public interface Packet {
 				resourceKey.location().toString()
 		);
 	}
+
+	/**
+	 * LEB128, as in mc's protocol: 7 bits per byte, least significant first.
+	 * Negative values take 5 bytes; zigzag-encode them first if they are common.
+	 */
+	static void writeVarInt(
+			final @NotNull ByteBuf out,
+			int value
+	) {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	static int readVarInt(
+			final @NotNull ByteBuf in
+	) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final byte b = in.readByte();
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("VarInt is too long");
+	}
 }
@@ -0,0 +1,258 @@
+package gjum.minecraft.mapsync.common.net;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The hash of the latest tile of each chunk (in any dimension) that a sync server has, as far as we know.
+ * Only a 64-bit fingerprint of each hash is kept, in primitive open-addressing tables,
+ * and once full, the chunks that weren't looked up in the longest time are evicted (clock algorithm).
+ * Split into stripes that are written under their own lock; reads are usually lock-free.
+ * A forgotten chunk just means its tile may be uploaded again.
+ */
+public class ServerKnownChunkHashes {
+	private static final int NUM_STRIPES = 16;
+	/**
+	 * marks empty slots; {@link #fingerprint(byte[])} never returns it
+	 */
+	private static final long NONE = 0;
+
+	private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+	/**
+	 * small numbers for the dimensions, shared by all instances, to put into the keys
+	 */
+	private static final ConcurrentHashMap<ResourceKey<Level>, Long> dimensionIds = new ConcurrentHashMap<>();
+	private static final AtomicLong nextDimensionId = new AtomicLong();
+
+	public ServerKnownChunkHashes(int maxSize) {
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			stripes[i] = new Stripe(Math.max(1, maxSize / NUM_STRIPES));
+		}
+	}
+
+	/**
+	 * the first 8 bytes of the (SHA-1) hash; the rest makes no difference in practice
+	 */
+	public static long fingerprint(byte @NotNull [] hash) {
+		long fingerprint = 0;
+		for (int i = 0; i < 8 && i < hash.length; i++) {
+			fingerprint = (fingerprint << 8) | (hash[i] & 0xff);
+		}
+		return fingerprint == NONE ? 1 : fingerprint;
+	}
+
+	public boolean isKnown(@NotNull ResourceKey<Level> dimension, @NotNull ChunkPos chunkPos, long fingerprint) {
+		return get(dimension, chunkPos) == fingerprint;
+	}
+
+	/**
+	 * @return the fingerprint of the hash the server has, or 0 if unknown
+	 */
+	public long get(@NotNull ResourceKey<Level> dimension, @NotNull ChunkPos chunkPos) {
+		final long key = keyOf(dimension, chunkPos);
+		final long mixed = HashCommon.mix(key);
+		final Stripe stripe = stripeOf(mixed);
+		long stamp = stripe.lock.tryOptimisticRead();
+		long fingerprint = stripe.find(key, mixed);
+		if (!stripe.lock.validate(stamp)) {
+			// a write happened meanwhile; the slots may have moved
+			stamp = stripe.lock.readLock();
+			try {
+				fingerprint = stripe.find(key, mixed);
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		return fingerprint;
+	}
+
+	public void put(@NotNull ResourceKey<Level> dimension, @NotNull ChunkPos chunkPos, long fingerprint) {
+		final long key = keyOf(dimension, chunkPos);
+		final long mixed = HashCommon.mix(key);
+		final Stripe stripe = stripeOf(mixed);
+		final long stamp = stripe.lock.writeLock();
+		try {
+			stripe.put(key, mixed, fingerprint == NONE ? 1 : fingerprint);
+		} finally {
+			stripe.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * the server doesn't have what we thought it has
+	 */
+	public void remove(@NotNull ResourceKey<Level> dimension, @NotNull ChunkPos chunkPos) {
+		final long key = keyOf(dimension, chunkPos);
+		final long mixed = HashCommon.mix(key);
+		final Stripe stripe = stripeOf(mixed);
+		final long stamp = stripe.lock.writeLock();
+		try {
+			stripe.remove(key, mixed);
+		} finally {
+			stripe.lock.unlockWrite(stamp);
+		}
+	}
+
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			final long stamp = stripe.lock.writeLock();
+			try {
+				Arrays.fill(stripe.fingerprints, NONE);
+				stripe.size = 0;
+			} finally {
+				stripe.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			final long stamp = stripe.lock.readLock();
+			try {
+				size += stripe.size;
+			} finally {
+				stripe.lock.unlockRead(stamp);
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Chunk z is within ±2^21 in any world, so the top bits of {@link ChunkPos#toLong()} just repeat its sign,
+	 * and the dimension can go there without two chunks getting the same key.
+	 */
+	private static long keyOf(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+		final long dimensionId = dimensionIds.computeIfAbsent(dimension, dim -> nextDimensionId.getAndIncrement());
+		return chunkPos.toLong() ^ (dimensionId << 56);
+	}
+
+	private Stripe stripeOf(long mixed) {
+		return stripes[(int) (mixed >>> 60) & (NUM_STRIPES - 1)];
+	}
+
+	/**
+	 * linear probing; removal shifts the following entries back instead of leaving tombstones
+	 */
+	private static final class Stripe {
+		final StampedLock lock = new StampedLock();
+		final long[] keys;
+		final long[] fingerprints;
+		/**
+		 * set on each lookup, cleared as the clock hand passes
+		 */
+		final boolean[] referenced;
+		final int mask;
+		final int maxSize;
+		int size = 0;
+		int clockHand = 0;
+
+		Stripe(int maxSize) {
+			this.maxSize = maxSize;
+			int capacity = HashCommon.arraySize(maxSize, .75f);
+			keys = new long[capacity];
+			fingerprints = new long[capacity];
+			referenced = new boolean[capacity];
+			mask = capacity - 1;
+		}
+
+		/**
+		 * May run concurrently with a write; the caller discards the result then.
+		 * Bounded by the capacity, so it terminates even on a table that is being modified.
+		 */
+		long find(long key, long mixed) {
+			int slot = (int) mixed & mask;
+			for (int n = 0; n <= mask; n++) {
+				final long fingerprint = fingerprints[slot];
+				if (fingerprint == NONE) return NONE;
+				if (keys[slot] == key) {
+					referenced[slot] = true; // racy, but at worst it keeps another entry a little longer
+					return fingerprint;
+				}
+				slot = (slot + 1) & mask;
+			}
+			return NONE;
+		}
+
+		/**
+		 * with the write lock held
+		 */
+		void put(long key, long mixed, long fingerprint) {
+			int slot = (int) mixed & mask;
+			while (fingerprints[slot] != NONE) {
+				if (keys[slot] == key) {
+					fingerprints[slot] = fingerprint;
+					referenced[slot] = true;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (size >= maxSize) {
+				evictOne();
+				// evicting may have shifted entries into the slot we found
+				slot = (int) mixed & mask;
+				while (fingerprints[slot] != NONE) slot = (slot + 1) & mask;
+			}
+			keys[slot] = key;
+			fingerprints[slot] = fingerprint;
+			referenced[slot] = false;
+			size++;
+		}
+
+		/**
+		 * with the write lock held
+		 */
+		void remove(long key, long mixed) {
+			int slot = (int) mixed & mask;
+			while (fingerprints[slot] != NONE) {
+				if (keys[slot] == key) {
+					removeAt(slot);
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		private void evictOne() {
+			while (true) {
+				final int slot = clockHand;
+				clockHand = (clockHand + 1) & mask;
+				if (fingerprints[slot] == NONE) continue;
+				if (referenced[slot]) {
+					referenced[slot] = false; // second chance
+					continue;
+				}
+				removeAt(slot);
+				return;
+			}
+		}
+
+		private void removeAt(int gap) {
+			int slot = gap;
+			while (true) {
+				slot = (slot + 1) & mask;
+				if (fingerprints[slot] == NONE) break;
+				final int home = (int) HashCommon.mix(keys[slot]) & mask;
+				// the entry can fill the gap if the gap lies between its home slot and its current slot
+				if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+					keys[gap] = keys[slot];
+					fingerprints[gap] = fingerprints[slot];
+					referenced[gap] = referenced[slot];
+					gap = slot;
+				}
+			}
+			fingerprints[gap] = NONE;
+			referenced[gap] = false;
+			size--;
+		}
+	}
+}
@@ -3,24 +3,39 @@ package gjum.minecraft.mapsync.common.net;
 import gjum.minecraft.mapsync.common.net.packet.*;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.handler.codec.MessageToMessageEncoder;
 
-public class ServerboundPacketEncoder extends MessageToByteEncoder<Packet> {
+import java.util.List;
+
+public class ServerboundPacketEncoder extends MessageToMessageEncoder<Packet> {
 	public static int getClientPacketId(Packet packet) {
 		if (packet instanceof ChunkTilePacket) return ChunkTilePacket.PACKET_ID;
 		if (packet instanceof ServerboundHandshakePacket) return ServerboundHandshakePacket.PACKET_ID;
 		if (packet instanceof ServerboundEncryptionResponsePacket) return ServerboundEncryptionResponsePacket.PACKET_ID;
 		if (packet instanceof ServerboundCatchupRequestPacket) return ServerboundCatchupRequestPacket.PACKET_ID;
+		if (packet instanceof ServerboundChunkTileBatchPacket) return ServerboundChunkTileBatchPacket.PACKET_ID;
+		if (packet instanceof ServerboundChunkTileDeltaPacket) return ServerboundChunkTileDeltaPacket.PACKET_ID;
 		if (packet instanceof ServerboundChunkTimestampsRequestPacket) return ServerboundChunkTimestampsRequestPacket.PACKET_ID;
+		if (packet instanceof ServerboundSubRegionDigestsRequestPacket) return ServerboundSubRegionDigestsRequestPacket.PACKET_ID;
+		if (packet instanceof ServerboundChunkDigestsRequestPacket) return ServerboundChunkDigestsRequestPacket.PACKET_ID;
 		throw new IllegalArgumentException("Unknown client packet class " + packet);
 	}
 
+	/**
+	 * Writes the frame's length prefix too, instead of a separate LengthFieldPrepender,
+	 * so each packet reaches the encryption and the socket as a single buffer.
+	 */
 	@Override
-	protected void encode(ChannelHandlerContext ctx, Packet packet, ByteBuf out) {
+	protected void encode(ChannelHandlerContext ctx, Packet packet, List<Object> out) {
+		ByteBuf buf = ctx.alloc().buffer();
 		try {
-			out.writeByte(getClientPacketId(packet));
-			packet.write(out);
+			buf.writeInt(0); // length, filled in below
+			buf.writeByte(getClientPacketId(packet));
+			ByteBuf frame = packet.writeZeroCopy(buf);
+			frame.setInt(frame.readerIndex(), frame.readableBytes() - 4);
+			out.add(frame);
 		} catch (Throwable err) {
+			buf.release();
 			err.printStackTrace();
 			ctx.close();
 		}
@@ -2,21 +2,24 @@ package gjum.minecraft.mapsync.common.net;
 
 import com.mojang.authlib.exceptions.AuthenticationException;
 import gjum.minecraft.mapsync.common.MapSyncMod;
+import gjum.minecraft.mapsync.common.PersistedChunkHashes;
 import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.data.PackedColumns;
+import gjum.minecraft.mapsync.common.data.PaletteColumns;
+import gjum.minecraft.mapsync.common.net.encryption.ConnectionCiphers;
 import gjum.minecraft.mapsync.common.net.encryption.EncryptionDecoder;
 import gjum.minecraft.mapsync.common.net.encryption.EncryptionEncoder;
 import gjum.minecraft.mapsync.common.net.packet.*;
 import gjum.minecraft.mapsync.common.utils.Hasher;
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
-import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import net.minecraft.client.Minecraft;
 import net.minecraft.client.User;
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
@@ -28,7 +31,6 @@ import java.security.*;
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
 
 import static gjum.minecraft.mapsync.common.MapSyncMod.debugLog;
 import static gjum.minecraft.mapsync.common.MapSyncMod.getMod;
@@ -37,27 +39,216 @@ import static gjum.minecraft.mapsync.common.MapSyncMod.getMod;
  * handles reconnection, authentication, encryption
  */
 public class SyncClient {
-	private final HashMap<ChunkPos, byte[]> serverKnownChunkHashes = new HashMap<>();
+	/**
+	 * about as many chunks as a long session with a lot of catchup touches
+	 */
+	private static final int MAX_SERVER_KNOWN_CHUNKS = 1 << 17;
+
+	private final ServerKnownChunkHashes serverKnownChunkHashes = new ServerKnownChunkHashes(MAX_SERVER_KNOWN_CHUNKS);
+	/**
+	 * what's not in serverKnownChunkHashes may still be on disk from an earlier session
+	 */
+	private final HashMap<ResourceKey<Level>, PersistedChunkHashes> persistedChunkHashes = new HashMap<>();
+	/**
+	 * see {@link ClientboundEncryptionRequestPacket#storageEpoch}; 0 until the first connection is set up
+	 */
+	private long storageEpoch = 0;
+
+	/**
+	 * beyond this, the compressed full tile is usually smaller than the uncompressed changed columns
+	 */
+	private static final int MAX_DELTA_COLUMNS = 32;
+	private static final int MAX_UPLOADED_TILES = 4096;
+
+	/**
+	 * column hashes of the tiles we uploaded, so the next upload of that chunk can leave out unchanged columns.
+	 * Access-ordered, so the chunks we haven't touched in the longest time get dropped first.
+	 */
+	private final LinkedHashMap<UploadedChunk, UploadedTile> uploadedTiles = new LinkedHashMap<>(16, .75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<UploadedChunk, UploadedTile> eldest) {
+			return size() > MAX_UPLOADED_TILES;
+		}
+	};
+
+	private record UploadedChunk(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+	}
+
+	private record UploadedTile(byte[] hash, long[] columnHashes) {
+	}
+
+	/**
+	 * how long to collect tiles before sending them together
+	 */
+	private static final long BATCH_WINDOW_MS = 50;
+	private static final int MAX_BATCH_TILES = 64;
+	/**
+	 * stays well below the sync server's frame size limit of 32 KiB
+	 */
+	private static final int MAX_BATCH_BYTES = 24 * 1024;
+
+	private @Nullable TileBatch batch;
+
+	private static class TileBatch {
+		final ResourceKey<Level> dimension;
+		final int dataVersion;
+		final ArrayList<ChunkTile> chunkTiles = new ArrayList<>();
+		int size = 0;
+
+		TileBatch(ResourceKey<Level> dimension, int dataVersion) {
+			this.dimension = dimension;
+			this.dataVersion = dataVersion;
+		}
+	}
 
 	public synchronized void sendChunkTile(ChunkTile chunkTile) {
-		var serverKnownHash = getServerKnownChunkHash(chunkTile.chunkPos());
-		if (Arrays.equals(chunkTile.dataHash(), serverKnownHash)) {
+		final long fingerprint = ServerKnownChunkHashes.fingerprint(chunkTile.dataHash());
+		final long serverKnownFingerprint = getServerKnownChunkHash(chunkTile.dimension(), chunkTile.chunkPos());
+		if (fingerprint == serverKnownFingerprint) {
 			debugLog("server already has chunk (hash) " + chunkTile.chunkPos());
 			return; // server already has this chunk
 		}
 
-		send(new ChunkTilePacket(chunkTile));
+		var encodedColumns = chunkTile.encodedColumns();
+		var uploadedTile = uploadedTiles.get(new UploadedChunk(chunkTile.dimension(), chunkTile.chunkPos()));
+		BitSet changedColumns = null;
+		if (encodedColumns != null && uploadedTile != null
+				&& hasCapability(Capabilities.TILE_DELTA)
+				&& ServerKnownChunkHashes.fingerprint(uploadedTile.hash()) == serverKnownFingerprint
+		) {
+			changedColumns = findChangedColumns(uploadedTile.columnHashes(), encodedColumns.columnHashes());
+		}
+		boolean sendDelta = changedColumns != null && changedColumns.cardinality() <= MAX_DELTA_COLUMNS
+				// a queued full tile replaces the one waiting before it, but a delta can't replace its own base
+				&& !queue.hasUpload(chunkTile.dimension(), chunkTile.chunkPos());
+
+		// assume packet will reach server eventually; if it can't store it, it tells us, see handleChunkTileRejected().
+		// before sending, as the queue forgets it again if it has to drop it
+		setServerKnownChunkHash(chunkTile.dimension(), chunkTile.chunkPos(), fingerprint);
+		if (encodedColumns != null) {
+			uploadedTiles.put(new UploadedChunk(chunkTile.dimension(), chunkTile.chunkPos()), new UploadedTile(chunkTile.dataHash(), encodedColumns.columnHashes()));
+		}
+
+		if (!sendDelta && encodedColumns != null && hasCapability(Capabilities.TILE_BATCH)) {
+			addToBatch(chunkTile);
+		} else {
+			flushBatch(); // keep the order; the server needs the base tile of a delta before the delta
+			if (sendDelta) {
+				send(new ServerboundChunkTileDeltaPacket(chunkTile, uploadedTile.hash(), changedColumns));
+			} else {
+				send(new ChunkTilePacket(chunkTile, getTileDataVersion()));
+			}
+		}
+	}
+
+	/**
+	 * The server didn't store our last upload of that chunk, e.g. because it didn't have the base of a delta.
+	 * Forgets what we assumed it has, so the chunk gets uploaded in full again.
+	 */
+	void handleChunkTileRejected(ClientboundChunkTileRejectedPacket packet) {
+		debugLog("server rejected upload of " + packet.chunkPos + " " + address);
+		forgetUpload(packet.dimension, packet.chunkPos);
+		getMod().handleChunkTileRejected(packet.dimension, packet.chunkPos);
+	}
+
+	private synchronized void forgetUpload(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+		serverKnownChunkHashes.remove(dimension, chunkPos);
+		getPersistedChunkHashes(dimension).set(chunkPos, 0);
+		uploadedTiles.remove(new UploadedChunk(dimension, chunkPos));
+	}
+
+	private static BitSet findChangedColumns(long[] oldColumnHashes, long[] newColumnHashes) {
+		var changed = new BitSet(PackedColumns.NUM_COLUMNS);
+		for (int column = 0; column < PackedColumns.NUM_COLUMNS; column++) {
+			if (oldColumnHashes[column] != newColumnHashes[column]) changed.set(column);
+		}
+		return changed;
+	}
+
+	private void addToBatch(ChunkTile chunkTile) {
+		int dataVersion = getTileDataVersion();
+		int size = ServerboundChunkTileBatchPacket.getEncodedSize(chunkTile, dataVersion);
+		if (batch != null && (batch.dimension != chunkTile.dimension()
+				|| batch.dataVersion != dataVersion
+				|| batch.chunkTiles.size() >= MAX_BATCH_TILES
+				|| batch.size + size > MAX_BATCH_BYTES)
+		) {
+			flushBatch();
+		}
+		if (batch == null) {
+			batch = new TileBatch(chunkTile.dimension(), dataVersion);
+			var batchChannel = channel;
+			if (batchChannel != null) {
+				batchChannel.eventLoop().schedule(this::flushBatch, BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+			}
+		}
+		batch.chunkTiles.add(chunkTile);
+		batch.size += size;
+		if (channel == null) flushBatch(); // nothing would flush it later
+	}
+
+	/**
+	 * sends the tiles collected so far
+	 */
+	public synchronized void flushBatch() {
+		if (batch == null) return;
+		var chunkTiles = batch.chunkTiles;
+		if (chunkTiles.size() == 1) {
+			send(new ChunkTilePacket(chunkTiles.get(0), batch.dataVersion));
+		} else {
+			send(new ServerboundChunkTileBatchPacket(batch.dimension, batch.dataVersion, chunkTiles));
+		}
+		batch = null;
+	}
+
+	/**
+	 * @return the {@link ServerKnownChunkHashes#fingerprint(byte[])} of the tile the server has, or 0 if unknown
+	 */
+	public long getServerKnownChunkHash(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+		long fingerprint = serverKnownChunkHashes.get(dimension, chunkPos);
+		if (fingerprint != 0) return fingerprint;
+		fingerprint = getPersistedChunkHashes(dimension).get(chunkPos);
+		if (fingerprint != 0) serverKnownChunkHashes.put(dimension, chunkPos, fingerprint);
+		return fingerprint;
+	}
 
-		// assume packet will reach server eventually
-		setServerKnownChunkHash(chunkTile.chunkPos(), chunkTile.dataHash());
+	/**
+	 * @param fingerprint see {@link ServerKnownChunkHashes#fingerprint(byte[])}
+	 */
+	public void setServerKnownChunkHash(ResourceKey<Level> dimension, ChunkPos chunkPos, long fingerprint) {
+		serverKnownChunkHashes.put(dimension, chunkPos, fingerprint);
+		getPersistedChunkHashes(dimension).set(chunkPos, fingerprint);
 	}
 
-	public synchronized byte[] getServerKnownChunkHash(ChunkPos chunkPos) {
-		return serverKnownChunkHashes.get(chunkPos);
+	private PersistedChunkHashes getPersistedChunkHashes(ResourceKey<Level> dimension) {
+		synchronized (persistedChunkHashes) {
+			return persistedChunkHashes.computeIfAbsent(dimension, dim -> {
+				var persisted = new PersistedChunkHashes(gameAddress, dim.location().toString(), address);
+				if (isShutDown) persisted.close();
+				else persisted.setStorageEpoch(storageEpoch);
+				return persisted;
+			});
+		}
 	}
 
-	public synchronized void setServerKnownChunkHash(ChunkPos chunkPos, byte[] hash) {
-		serverKnownChunkHashes.put(chunkPos, hash);
+	/**
+	 * The server tells its epoch on each connection. If it changed, the server lost its chunks,
+	 * so what we remember about it is wrong now.
+	 */
+	private synchronized void setStorageEpoch(long epoch) {
+		synchronized (persistedChunkHashes) {
+			if (epoch == storageEpoch) return;
+			if (storageEpoch != 0) {
+				logger.info("[map-sync] Storage of '" + address + "' was reset, forgetting which chunks it has");
+				serverKnownChunkHashes.clear();
+				// no delta may build on a tile the server doesn't have anymore
+				uploadedTiles.clear();
+			}
+			storageEpoch = epoch;
+			for (PersistedChunkHashes persisted : persistedChunkHashes.values()) {
+				persisted.setStorageEpoch(epoch);
+			}
+		}
 	}
 
 	// XXX end of hotfix
@@ -80,13 +271,31 @@ public class SyncClient {
 	 */
 	public boolean isShutDown = false;
 	private boolean isEncrypted = false;
+	/**
+	 * accepted by the server during the current connection; see {@link Capabilities}
+	 */
+	private int capabilities = 0;
 	private @Nullable String lastError;
 	/**
-	 * limited (on insert) to 199 entries
+	 * packets waiting for encryption to be set up, or for the channel to become writable
+	 */
+	private final OutboundQueue queue = new OutboundQueue(
+			// the server won't get it, so don't assume it has it
+			tile -> forgetUpload(tile.dimension(), tile.chunkPos()));
+	private final CatchupWindow catchupWindow = new CatchupWindow();
+	private boolean isWriteScheduled = false;
+	/**
+	 * at most this many flushes are merged into one, so a long burst doesn't sit in the outbound buffer
+	 */
+	private static final int MAX_CONSOLIDATED_FLUSHES = 64;
+	/**
+	 * the current connection; events of earlier ones are ignored, see {@link #handleDisconnect(Channel, Throwable)}
 	 */
-	private ArrayList<Packet> queue = new ArrayList<>();
-	private @Nullable Channel channel;
-	private static @Nullable NioEventLoopGroup workerGroup;
+	private volatile @Nullable Channel channel;
+	/**
+	 * shared with all other clients; null once shut down
+	 */
+	private @Nullable EventLoopGroup eventLoopGroup = SyncEventLoop.acquire();
 
 	public SyncClient(@NotNull String address, @NotNull String gameAddress) {
 		if (!address.contains(":")) address = address + ":12312";
@@ -97,23 +306,23 @@ public class SyncClient {
 
 	private void connect() {
 		try {
-			if (isShutDown) return;
+			if (isShutDown || eventLoopGroup == null) return;
 
-			if (workerGroup != null && !workerGroup.isShuttingDown()) {
-				// end any tasks of the old connection
-				workerGroup.shutdownGracefully();
+			final var oldChannel = channel;
+			if (oldChannel != null && oldChannel.isOpen()) {
+				// end the old connection; not current anymore, so its disconnect is ignored
+				channel = null;
+				oldChannel.close();
 			}
-			workerGroup = new NioEventLoopGroup();
 			isEncrypted = false;
+			capabilities = 0;
 
-			var bootstrap = new Bootstrap();
-			bootstrap.group(workerGroup);
-			bootstrap.channel(NioSocketChannel.class);
-			bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
+			var bootstrap = SyncEventLoop.bootstrap(eventLoopGroup);
 			bootstrap.handler(new ChannelInitializer<SocketChannel>() {
 				public void initChannel(SocketChannel ch) {
 					ch.pipeline().addLast(
-							new LengthFieldPrepender(4),
+							// flushes once per read or event loop iteration, so a burst of packets goes out in few syscalls
+							new FlushConsolidationHandler(MAX_CONSOLIDATED_FLUSHES, true),
 							new LengthFieldBasedFrameDecoder(1 << 15, 0, 4, 0, 4),
 							new ClientboundPacketDecoder(),
 							new ServerboundPacketEncoder(),
@@ -133,19 +342,28 @@ public class SyncClient {
 							getMod().getVersion(),
 							Minecraft.getInstance().getUser().getName(),
 							gameAddress,
-							getMod().getDimensionState().dimension.location().toString()));
+							getMod().getDimensionState().dimension.location().toString(),
+							Capabilities.SUPPORTED));
 				} else {
-					handleDisconnect(future.cause());
+					handleDisconnect(channelFuture.channel(), future.cause());
 				}
 			});
 		} catch (Throwable e) {
 			e.printStackTrace();
-			handleDisconnect(e);
+			handleDisconnect(channel, e);
 		}
 	}
 
-	void handleDisconnect(Throwable err) {
+	/**
+	 * @param disconnected ignored unless it's still the current connection:
+	 *                     {@link #connect()} closes the previous one, which would otherwise end the new one in turn
+	 */
+	void handleDisconnect(@Nullable Channel disconnected, Throwable err) {
+		if (disconnected != channel) return;
 		isEncrypted = false;
+		catchupWindow.reset();
+		getMod().handleSyncServerDisconnected(this);
+		final EventLoopGroup group;
 
 		if (Minecraft.getInstance().level == null) shutDown();
 
@@ -160,12 +378,12 @@ public class SyncClient {
 			logger.warn("[map-sync] Got disconnected from '" + address + "'." +
 					" Won't retry (autoReconnect=false)");
 			if (!errMsg.contains("Channel inactive")) err.printStackTrace();
-		} else if (workerGroup == null) {
+		} else if ((group = eventLoopGroup) == null) {
 			logger.warn("[map-sync] Got disconnected from '" + address + "'." +
-					" Won't retry (workerGroup=null)");
+					" Won't retry (eventLoopGroup=null)");
 			err.printStackTrace();
 		} else {
-			workerGroup.schedule(this::connect, retrySec, TimeUnit.SECONDS);
+			group.schedule(this::connect, retrySec, TimeUnit.SECONDS);
 
 			if (!errMsg.startsWith("Connection refused: ")) { // reduce spam
 				logger.warn("[map-sync] Got disconnected from '" + address + "'." +
@@ -182,67 +400,125 @@ public class SyncClient {
 		isEncrypted = true;
 		getMod().handleSyncServerEncryptionSuccess();
 
-		for (Packet packet : queue) {
-			channel.write(packet);
-		}
-		queue.clear();
-		channel.flush();
+		writeQueued();
+	}
+
+	/**
+	 * called by {@link ClientHandler} when the channel's outbound buffer has drained enough
+	 */
+	void handleWritable() {
+		writeQueued();
 	}
 
 	public boolean isEncrypted() {
 		return isEncrypted;
 	}
 
+	public boolean hasCapability(int capability) {
+		return Capabilities.has(capabilities, capability);
+	}
+
+	/**
+	 * the most compact tile data version the server accepted
+	 */
+	public int getTileDataVersion() {
+		if (hasCapability(Capabilities.TILE_PALETTE)) return PaletteColumns.DATA_VERSION;
+		return PackedColumns.DATA_VERSION;
+	}
+
 	public String getError() {
 		return lastError;
 	}
 
 	/**
-	 * Send if encrypted, or queue and send once encryption is set up.
+	 * packets waiting to be written
 	 */
-	public void send(Packet packet) {
-		send(packet, true);
+	public synchronized int getQueueDepth() {
+		return queue.size();
+	}
+
+	public @NotNull CatchupWindow getCatchupWindow() {
+		return catchupWindow;
 	}
 
 	/**
-	 * Send if encrypted, or queue and send once encryption is set up.
+	 * Queue, then send by priority once encryption is set up and while the channel is writable.
 	 */
-	public synchronized void send(Packet packet, boolean flush) {
+	public synchronized void send(Packet packet) {
 		try {
-			if (isEncrypted() && channel != null && channel.isActive()) {
-				if (flush) channel.writeAndFlush(packet);
-				else channel.write(packet);
-			} else {
-				queue.add(packet);
-				// don't let the queue occupy too much memory
-				if (queue.size() > 200) {
-					logger.warn("[map-sync] Dropping 100 oldest packets from queue");
-					queue = queue.stream()
-							.skip(100)
-							.collect(Collectors.toCollection(ArrayList::new));
-				}
-			}
+			queue.add(packet);
+			scheduleWriteQueued();
 		} catch (Throwable e) {
 			e.printStackTrace();
 		}
 	}
 
+	private synchronized void scheduleWriteQueued() {
+		final var ch = channel;
+		if (!isEncrypted || ch == null || isWriteScheduled) return;
+		isWriteScheduled = true;
+		ch.eventLoop().execute(this::writeQueued);
+	}
+
+	/**
+	 * Writes queued packets until the channel stops being writable.
+	 * Runs on the channel's event loop, so each packet is encoded right away
+	 * and its size counts towards the channel's writability before we check it for the next one.
+	 * The lock is only held to take each packet from the queue, not while it's encoded and encrypted,
+	 * so uploading from other threads doesn't wait for that.
+	 */
+	private void writeQueued() {
+		final Channel ch;
+		synchronized (this) {
+			isWriteScheduled = false;
+			ch = channel;
+			if (!isEncrypted || ch == null || !ch.isActive()) return;
+			if (!ch.eventLoop().inEventLoop()) {
+				scheduleWriteQueued();
+				return;
+			}
+		}
+		boolean wrote = false;
+		while (ch.isWritable()) {
+			final Packet packet;
+			synchronized (this) {
+				packet = queue.poll();
+			}
+			if (packet == null) break;
+			ch.write(packet);
+			wrote = true;
+		}
+		// FlushConsolidationHandler defers this to the end of the current read or event loop iteration
+		if (wrote) ch.flush();
+	}
+
 	public synchronized void shutDown() {
 		isShutDown = true;
-		if (channel != null) {
-			channel.disconnect();
-			channel.eventLoop().shutdownGracefully();
+		final var oldChannel = channel;
+		if (oldChannel != null) {
 			channel = null;
+			oldChannel.disconnect();
 		}
-		if (workerGroup != null && !workerGroup.isShuttingDown()) {
-			// this also stops any ongoing reconnect timeout
-			workerGroup.shutdownGracefully();
-			workerGroup = null;
+		synchronized (persistedChunkHashes) {
+			// kept closed in the map, so they aren't opened again
+			for (PersistedChunkHashes persisted : persistedChunkHashes.values()) {
+				persisted.close();
+			}
+		}
+		if (eventLoopGroup != null) {
+			// any reconnect timeout still scheduled on it will see isShutDown and do nothing
+			eventLoopGroup = null;
+			SyncEventLoop.release();
 		}
+		getMod().handleSyncServerDisconnected(this);
 	}
 
 	void setUpEncryption(ChannelHandlerContext ctx, ClientboundEncryptionRequestPacket packet) {
 		try {
+			// never use more than we asked for
+			capabilities = packet.capabilities & Capabilities.SUPPORTED;
+			if (hasCapability(Capabilities.STORAGE_EPOCH)) setStorageEpoch(packet.storageEpoch);
+
 			byte[] sharedSecret = new byte[16];
 			ThreadLocalRandom.current().nextBytes(sharedSecret);
 
@@ -273,9 +549,10 @@ public class SyncClient {
 			}
 
 			SecretKey secretKey = new SecretKeySpec(sharedSecret, "AES");
+			boolean useCtr = hasCapability(Capabilities.ENCRYPTION_CTR);
 			ctx.pipeline()
-					.addFirst("encrypt", new EncryptionEncoder(secretKey))
-					.addFirst("decrypt", new EncryptionDecoder(secretKey));
+					.addFirst("encrypt", new EncryptionEncoder(ConnectionCiphers.createEncryptCipher(secretKey, useCtr)))
+					.addFirst("decrypt", new EncryptionDecoder(ConnectionCiphers.createDecryptCipher(secretKey, useCtr)));
 
 			handleEncryptionSuccess();
 		} catch (AuthenticationException e) {
@@ -0,0 +1,62 @@
+package gjum.minecraft.mapsync.common.net;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static gjum.minecraft.mapsync.common.MapSyncMod.modConfig;
+
+/**
+ * The one event loop group that all {@link SyncClient}s share.
+ * Created when the first client needs it, and shut down when the last client has shut down.
+ * Uses the native epoll transport where available, like mc itself does on Linux.
+ */
+public final class SyncEventLoop {
+	private static @Nullable EventLoopGroup group;
+	private static int numUsers = 0;
+
+	/**
+	 * Each call must be paired with one {@link #release()}, once the client won't use the group anymore.
+	 */
+	public static synchronized @NotNull EventLoopGroup acquire() {
+		if (group == null || group.isShuttingDown()) {
+			int numThreads = modConfig.getNetworkThreads();
+			var threadFactory = new DefaultThreadFactory("MapSync Network", true);
+			if (Epoll.isAvailable()) group = new EpollEventLoopGroup(numThreads, threadFactory);
+			else group = new NioEventLoopGroup(numThreads, threadFactory);
+		}
+		numUsers++;
+		return group;
+	}
+
+	public static synchronized void release() {
+		if (numUsers <= 0) throw new IllegalStateException("Released more often than acquired");
+		if (--numUsers > 0) return;
+		if (group != null) {
+			// this also stops any ongoing reconnect timeouts
+			group.shutdownGracefully();
+			group = null;
+		}
+	}
+
+	/**
+	 * @return a bootstrap for a client connection on the shared group, using pooled direct buffers
+	 */
+	public static @NotNull Bootstrap bootstrap(@NotNull EventLoopGroup group) {
+		return new Bootstrap()
+				.group(group)
+				.channel(group instanceof EpollEventLoopGroup ? EpollSocketChannel.class : NioSocketChannel.class)
+				.option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+				.option(ChannelOption.SO_KEEPALIVE, true)
+				.option(ChannelOption.TCP_NODELAY, true);
+	}
+}
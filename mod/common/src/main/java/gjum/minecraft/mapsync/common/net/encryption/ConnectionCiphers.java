@@ -0,0 +1,51 @@
+package gjum.minecraft.mapsync.common.net.encryption;
+
+import gjum.minecraft.mapsync.common.utils.Hasher;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Creates the ciphers of an encrypted sync server connection, keyed with the shared secret.
+ * <p>
+ * CFB8 is what all servers understand, but it runs a whole AES block per byte.
+ * CTR runs one AES block per 16 bytes, and its blocks don't depend on each other, so AES-NI can pipeline them.
+ * It is used when the server accepted {@link gjum.minecraft.mapsync.common.net.Capabilities#ENCRYPTION_CTR}.
+ * CTR must never reuse a key stream, so each direction derives its own IV from the secret.
+ */
+public final class ConnectionCiphers {
+	public static Cipher createEncryptCipher(SecretKey key, boolean useCtr) {
+		return create(Cipher.ENCRYPT_MODE, key, useCtr, "c2s");
+	}
+
+	public static Cipher createDecryptCipher(SecretKey key, boolean useCtr) {
+		return create(Cipher.DECRYPT_MODE, key, useCtr, "s2c");
+	}
+
+	/**
+	 * @param direction only used for CTR; the server uses the same strings
+	 */
+	private static Cipher create(int opMode, SecretKey key, boolean useCtr, String direction) {
+		try {
+			if (useCtr) {
+				Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+				byte[] iv = Arrays.copyOf(Hasher.sha256()
+						.update(key.getEncoded())
+						.update(direction.getBytes(StandardCharsets.US_ASCII))
+						.generateHash(), 16);
+				cipher.init(opMode, key, new IvParameterSpec(iv));
+				return cipher;
+			} else {
+				Cipher cipher = Cipher.getInstance("AES/CFB8/NoPadding");
+				cipher.init(opMode, key, new IvParameterSpec(key.getEncoded()));
+				return cipher;
+			}
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
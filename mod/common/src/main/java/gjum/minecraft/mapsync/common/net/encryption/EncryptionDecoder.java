@@ -6,26 +6,22 @@ import io.netty.handler.codec.MessageToMessageDecoder;
 
 import javax.crypto.Cipher;
 import javax.crypto.ShortBufferException;
-import javax.crypto.spec.IvParameterSpec;
-import java.security.GeneralSecurityException;
-import java.security.Key;
 import java.util.List;
 
 public class EncryptionDecoder extends MessageToMessageDecoder<ByteBuf> {
 	private final EncryptionTranslator decryptionCodec;
 
-	public EncryptionDecoder(Key key) {
-		try {
-			Cipher cipher = Cipher.getInstance("AES/CFB8/NoPadding");
-			cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(key.getEncoded()));
-			decryptionCodec = new EncryptionTranslator(cipher);
-		} catch (GeneralSecurityException e) {
-			throw new RuntimeException(e);
-		}
+	/**
+	 * @param cipher see {@link ConnectionCiphers}
+	 */
+	public EncryptionDecoder(Cipher cipher) {
+		decryptionCodec = new EncryptionTranslator(cipher);
 	}
 
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws ShortBufferException {
-		out.add(decryptionCodec.decipher(ctx, in));
+		// the buffer was just read from the socket and nothing else references it, so we can decrypt it in place
+		decryptionCodec.decipherInPlace(in);
+		out.add(in.retain()); // released by the decoder after we return
 	}
 }
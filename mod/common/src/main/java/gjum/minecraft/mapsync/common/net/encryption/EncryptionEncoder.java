@@ -6,21 +6,23 @@ import io.netty.handler.codec.MessageToByteEncoder;
 
 import javax.crypto.Cipher;
 import javax.crypto.ShortBufferException;
-import javax.crypto.spec.IvParameterSpec;
-import java.security.GeneralSecurityException;
-import java.security.Key;
 
 public class EncryptionEncoder extends MessageToByteEncoder<ByteBuf> {
 	private final EncryptionTranslator encryptionCodec;
 
-	public EncryptionEncoder(Key key) {
-		try {
-			Cipher cipher = Cipher.getInstance("AES/CFB8/NoPadding");
-			cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(key.getEncoded()));
-			encryptionCodec = new EncryptionTranslator(cipher);
-		} catch (GeneralSecurityException e) {
-			throw new RuntimeException(e);
-		}
+	/**
+	 * @param cipher see {@link ConnectionCiphers}
+	 */
+	public EncryptionEncoder(Cipher cipher) {
+		encryptionCodec = new EncryptionTranslator(cipher);
+	}
+
+	/**
+	 * pooled direct buffer of exactly the encrypted size, so the socket can write it without another copy
+	 */
+	@Override
+	protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, ByteBuf in, boolean preferDirect) {
+		return ctx.alloc().directBuffer(encryptionCodec.getOutputSize(in.readableBytes()));
 	}
 
 	@Override
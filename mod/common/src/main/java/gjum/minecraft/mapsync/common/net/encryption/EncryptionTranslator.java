@@ -1,48 +1,50 @@
 package gjum.minecraft.mapsync.common.net.encryption;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
 
 import javax.crypto.Cipher;
 import javax.crypto.ShortBufferException;
+import java.nio.ByteBuffer;
 
+/**
+ * Runs the cipher directly over {@link ByteBuf#nioBuffers()} views, without copying into intermediate arrays.
+ * {@link Cipher#update(ByteBuffer, ByteBuffer)} is copy-safe, so input and output may be the same memory.
+ */
 public class EncryptionTranslator {
 	private final Cipher cipher;
-	private byte[] inputBuffer = new byte[0];
-	private byte[] outputBuffer = new byte[0];
 
 	protected EncryptionTranslator(Cipher cipher) {
 		this.cipher = cipher;
 	}
 
-	private byte[] bufToBytes(ByteBuf buf) {
-		int i = buf.readableBytes();
-
-		if (this.inputBuffer.length < i) {
-			this.inputBuffer = new byte[i];
+	/**
+	 * Replaces the readable bytes of the buffer with their decrypted form,
+	 * without moving its reader index. The buffer must be writable.
+	 */
+	protected void decipherInPlace(ByteBuf buffer) throws ShortBufferException {
+		for (ByteBuffer nioBuffer : buffer.nioBuffers(buffer.readerIndex(), buffer.readableBytes())) {
+			// duplicate: same memory, but separate positions for reading and writing
+			cipher.update(nioBuffer, nioBuffer.duplicate());
 		}
-
-		buf.readBytes(this.inputBuffer, 0, i);
-		return this.inputBuffer;
-	}
-
-	protected ByteBuf decipher(ChannelHandlerContext ctx, ByteBuf buffer) throws ShortBufferException {
-		int i = buffer.readableBytes();
-		byte[] bytes = this.bufToBytes(buffer);
-		ByteBuf bytebuf = ctx.alloc().heapBuffer(this.cipher.getOutputSize(i));
-		bytebuf.writerIndex(this.cipher.update(bytes, 0, i, bytebuf.array(), bytebuf.arrayOffset()));
-		return bytebuf;
 	}
 
+	/**
+	 * Encrypts all readable bytes of `in` into `out`.
+	 * `in` is not modified, as it may share tile data with other connections.
+	 */
 	protected void encipher(ByteBuf in, ByteBuf out) throws ShortBufferException {
-		int i = in.readableBytes();
-		byte[] bytes = this.bufToBytes(in);
-		int j = this.cipher.getOutputSize(i);
-
-		if (this.outputBuffer.length < j) {
-			this.outputBuffer = new byte[j];
+		int length = in.readableBytes();
+		out.ensureWritable(cipher.getOutputSize(length));
+		ByteBuffer outNio = out.nioBuffer(out.writerIndex(), out.writableBytes());
+		int written = 0;
+		for (ByteBuffer inNio : in.nioBuffers(in.readerIndex(), length)) {
+			written += cipher.update(inNio, outNio);
 		}
+		out.writerIndex(out.writerIndex() + written);
+		in.skipBytes(length);
+	}
 
-		out.writeBytes(this.outputBuffer, 0, this.cipher.update(bytes, 0, i, this.outputBuffer));
+	protected int getOutputSize(int inputLength) {
+		return cipher.getOutputSize(inputLength);
 	}
 }
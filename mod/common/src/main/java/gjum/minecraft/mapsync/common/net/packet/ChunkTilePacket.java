@@ -1,8 +1,10 @@
 package gjum.minecraft.mapsync.common.net.packet;
 
 import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.data.PackedColumns;
 import gjum.minecraft.mapsync.common.net.Packet;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import org.jetbrains.annotations.NotNull;
 
 /**
@@ -16,9 +18,21 @@ public class ChunkTilePacket implements Packet {
 	public static final int PACKET_ID = 4;
 
 	public final ChunkTile chunkTile;
+	/**
+	 * how the columns are written; always {@link PackedColumns#DATA_VERSION} for tiles without encoded columns
+	 */
+	private final int dataVersion;
 
 	public ChunkTilePacket(@NotNull ChunkTile chunkTile) {
+		this(chunkTile, PackedColumns.DATA_VERSION);
+	}
+
+	/**
+	 * @param dataVersion only one the server accepted, see {@link gjum.minecraft.mapsync.common.net.SyncClient#getTileDataVersion()}
+	 */
+	public ChunkTilePacket(@NotNull ChunkTile chunkTile, int dataVersion) {
 		this.chunkTile = chunkTile;
+		this.dataVersion = chunkTile.encodedColumns() != null ? dataVersion : PackedColumns.DATA_VERSION;
 	}
 
 	public static Packet read(ByteBuf buf) {
@@ -28,6 +42,18 @@ public class ChunkTilePacket implements Packet {
 
 	@Override
 	public void write(@NotNull ByteBuf buf) {
-		chunkTile.write(buf);
+		chunkTile.writeMetadata(buf, dataVersion);
+		chunkTile.writeColumns(buf, dataVersion);
+	}
+
+	@Override
+	public @NotNull ByteBuf writeZeroCopy(@NotNull ByteBuf buf) {
+		var encodedColumns = chunkTile.encodedColumns();
+		if (encodedColumns == null) {
+			write(buf);
+			return buf;
+		}
+		chunkTile.writeMetadata(buf, dataVersion);
+		return Unpooled.wrappedBuffer(buf, encodedColumns.buffer(dataVersion));
 	}
 }
@@ -0,0 +1,58 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+
+/**
+ * You'll receive this in response to a sent {@link ServerboundChunkDigestsRequestPacket},
+ * possibly split into several, with the newest timestamp and data fingerprint of each chunk
+ * the server has in the sub-regions you listed.
+ * You should respond with a {@link ServerboundCatchupRequestPacket} for the ones that are newer than yours
+ * and have different data.
+ */
+public class ClientboundChunkDigestsPacket implements Packet {
+	public static final int PACKET_ID = 15;
+
+	public final ResourceKey<Level> dimension;
+	/**
+	 * {@link ChunkPos#toLong()}
+	 */
+	public final long[] chunkPositions;
+	public final long[] timestamps;
+	/**
+	 * see {@link gjum.minecraft.mapsync.common.net.ServerKnownChunkHashes#fingerprint(byte[])}
+	 */
+	public final long[] fingerprints;
+
+	public ClientboundChunkDigestsPacket(ResourceKey<Level> dimension, long[] chunkPositions, long[] timestamps, long[] fingerprints) {
+		this.dimension = dimension;
+		this.chunkPositions = chunkPositions;
+		this.timestamps = timestamps;
+		this.fingerprints = fingerprints;
+	}
+
+	public static Packet read(ByteBuf buf) {
+		var dimension = Packet.readResourceKey(buf, Registry.DIMENSION_REGISTRY);
+
+		int length = buf.readInt();
+		// don't trust the length before the data is there
+		if (length < 0 || length > buf.readableBytes() / (4 + 4 + 8 + 8)) {
+			throw new IllegalArgumentException("Invalid chunk count " + length);
+		}
+		var chunkPositions = new long[length];
+		var timestamps = new long[length];
+		var fingerprints = new long[length];
+		for (int i = 0; i < length; i++) {
+			int chunk_x = buf.readInt();
+			int chunk_z = buf.readInt();
+			chunkPositions[i] = ChunkPos.asLong(chunk_x, chunk_z);
+			timestamps[i] = buf.readLong();
+			fingerprints[i] = buf.readLong();
+		}
+		return new ClientboundChunkDigestsPacket(dimension, chunkPositions, timestamps, fingerprints);
+	}
+}
@@ -0,0 +1,32 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.core.Registry;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+
+/**
+ * The server didn't store your last upload of this chunk, e.g. because it doesn't have the base of a
+ * {@link ServerboundChunkTileDeltaPacket}. You should send it again as a full {@link ChunkTilePacket}.
+ * Only sent to clients with {@link gjum.minecraft.mapsync.common.net.Capabilities#TILE_DELTA}.
+ */
+public class ClientboundChunkTileRejectedPacket implements Packet {
+	public static final int PACKET_ID = 16;
+
+	public final ResourceKey<Level> dimension;
+	public final ChunkPos chunkPos;
+
+	public ClientboundChunkTileRejectedPacket(ResourceKey<Level> dimension, ChunkPos chunkPos) {
+		this.dimension = dimension;
+		this.chunkPos = chunkPos;
+	}
+
+	public static Packet read(ByteBuf buf) {
+		var dimension = Packet.readResourceKey(buf, Registry.DIMENSION_REGISTRY);
+		int chunk_x = buf.readInt();
+		int chunk_z = buf.readInt();
+		return new ClientboundChunkTileRejectedPacket(dimension, new ChunkPos(chunk_x, chunk_z));
+	}
+}
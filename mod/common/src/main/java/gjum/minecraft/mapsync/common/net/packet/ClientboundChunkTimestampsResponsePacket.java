@@ -1,14 +1,12 @@
 package gjum.minecraft.mapsync.common.net.packet;
 
-import gjum.minecraft.mapsync.common.data.CatchupChunk;
+import gjum.minecraft.mapsync.common.data.CatchupChunks;
 import gjum.minecraft.mapsync.common.net.Packet;
 import io.netty.buffer.ByteBuf;
 import net.minecraft.core.Registry;
+import net.minecraft.world.level.ChunkPos;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * You'll receive this in response to a sent {@link ServerboundChunkTimestampsRequestPacket},
  * containing an elaboration of chunk timestamps of all the regions you listed.
@@ -20,9 +18,9 @@ public class ClientboundChunkTimestampsResponsePacket implements Packet {
 	/**
 	 * sorted by newest to oldest
 	 */
-	public final @NotNull List<CatchupChunk> chunks;
+	public final @NotNull CatchupChunks chunks;
 
-	public ClientboundChunkTimestampsResponsePacket(@NotNull List<CatchupChunk> chunks) {
+	public ClientboundChunkTimestampsResponsePacket(@NotNull CatchupChunks chunks) {
 		this.chunks = chunks;
 	}
 
@@ -30,14 +28,13 @@ public class ClientboundChunkTimestampsResponsePacket implements Packet {
 		var dimension = Packet.readResourceKey(buf, Registry.DIMENSION_REGISTRY);
 
 		int length = buf.readInt();
-		List<CatchupChunk> chunks = new ArrayList<>(length);
+		// don't trust the length before the data is there
+		var chunks = new CatchupChunks(dimension, Math.min(length, buf.readableBytes() / (4 + 4 + 8)));
 		for (int i = 0; i < length; i++) {
 			int chunk_x = buf.readInt();
 			int chunk_z = buf.readInt();
 			long timestamp = buf.readLong();
-			CatchupChunk chunk = new CatchupChunk(
-					dimension, chunk_x, chunk_z, timestamp);
-			chunks.add(chunk);
+			chunks.add(ChunkPos.asLong(chunk_x, chunk_z), timestamp);
 		}
 		return new ClientboundChunkTimestampsResponsePacket(chunks);
 	}
@@ -1,5 +1,6 @@
 package gjum.minecraft.mapsync.common.net.packet;
 
+import gjum.minecraft.mapsync.common.net.Capabilities;
 import gjum.minecraft.mapsync.common.net.Packet;
 import io.netty.buffer.ByteBuf;
 import org.jetbrains.annotations.NotNull;
@@ -17,16 +18,28 @@ public class ClientboundEncryptionRequestPacket implements Packet {
 
 	public final @NotNull PublicKey publicKey;
 	public final byte @NotNull [] verifyToken;
+	/**
+	 * the {@link Capabilities} the server accepted; 0 for servers that don't know about capabilities
+	 */
+	public final int capabilities;
+	/**
+	 * changes when the server's database is wiped; 0 if the server didn't accept {@link Capabilities#STORAGE_EPOCH}
+	 */
+	public final long storageEpoch;
 
-	public ClientboundEncryptionRequestPacket(@NotNull PublicKey publicKey, byte @NotNull [] verifyToken) {
+	public ClientboundEncryptionRequestPacket(@NotNull PublicKey publicKey, byte @NotNull [] verifyToken, int capabilities, long storageEpoch) {
 		this.publicKey = publicKey;
 		this.verifyToken = verifyToken;
+		this.capabilities = capabilities;
+		this.storageEpoch = storageEpoch;
 	}
 
 	public static Packet read(ByteBuf buf) {
-		return new ClientboundEncryptionRequestPacket(
-				readKey(buf),
-				Packet.readIntLengthByteArray(buf));
+		final var publicKey = readKey(buf);
+		final byte[] verifyToken = Packet.readIntLengthByteArray(buf);
+		final int capabilities = buf.isReadable() ? buf.readInt() : 0;
+		final long storageEpoch = Capabilities.has(capabilities, Capabilities.STORAGE_EPOCH) ? buf.readLong() : 0;
+		return new ClientboundEncryptionRequestPacket(publicKey, verifyToken, capabilities, storageEpoch);
 	}
 
 	protected static PublicKey readKey(ByteBuf in) {
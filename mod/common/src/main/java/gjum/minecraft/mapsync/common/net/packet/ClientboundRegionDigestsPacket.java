@@ -0,0 +1,42 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Sent instead of a {@link ClientboundRegionTimestampsPacket} to clients with
+ * {@link gjum.minecraft.mapsync.common.net.Capabilities#REGION_DIGESTS}, possibly split into several.
+ * Lists the {@link gjum.minecraft.mapsync.common.data.RegionDigests} of all regions the server has chunks in.
+ * You should respond with a {@link ServerboundSubRegionDigestsRequestPacket} for the ones that differ from yours.
+ */
+public class ClientboundRegionDigestsPacket implements Packet {
+	public static final int PACKET_ID = 11;
+
+	public final String dimension;
+	public final RegionPos[] regions;
+	public final long[] digests;
+
+	public ClientboundRegionDigestsPacket(String dimension, RegionPos[] regions, long[] digests) {
+		this.dimension = dimension;
+		this.regions = regions;
+		this.digests = digests;
+	}
+
+	public static Packet read(ByteBuf buf) {
+		String dimension = Packet.readUtf8String(buf);
+
+		int length = buf.readInt();
+		// don't trust the length before the data is there
+		if (length < 0 || length > buf.readableBytes() / (2 + 2 + 8)) {
+			throw new IllegalArgumentException("Invalid region count " + length);
+		}
+		var regions = new RegionPos[length];
+		var digests = new long[length];
+		for (int i = 0; i < length; i++) {
+			regions[i] = new RegionPos(buf.readShort(), buf.readShort());
+			digests[i] = buf.readLong();
+		}
+		return new ClientboundRegionDigestsPacket(dimension, regions, digests);
+	}
+}
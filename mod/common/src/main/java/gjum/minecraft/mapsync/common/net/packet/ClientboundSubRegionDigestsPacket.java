@@ -0,0 +1,49 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.data.RegionDigests;
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+
+/**
+ * You'll receive this in response to a sent {@link ServerboundSubRegionDigestsRequestPacket},
+ * possibly split into several, with the digests of all sub-regions of the regions you listed.
+ * You should respond with a {@link ServerboundChunkDigestsRequestPacket} for the ones that differ from yours.
+ */
+public class ClientboundSubRegionDigestsPacket implements Packet {
+	public static final int PACKET_ID = 13;
+
+	private static final int REGION_SIZE = 2 + 2 + 8 * RegionDigests.SUB_REGIONS_PER_REGION;
+
+	public final String dimension;
+	public final RegionPos[] regions;
+	/**
+	 * {@link RegionDigests#SUB_REGIONS_PER_REGION} per region
+	 */
+	public final long[][] subRegionDigests;
+
+	public ClientboundSubRegionDigestsPacket(String dimension, RegionPos[] regions, long[][] subRegionDigests) {
+		this.dimension = dimension;
+		this.regions = regions;
+		this.subRegionDigests = subRegionDigests;
+	}
+
+	public static Packet read(ByteBuf buf) {
+		String dimension = Packet.readUtf8String(buf);
+
+		int length = buf.readInt();
+		// don't trust the length before the data is there
+		if (length < 0 || length > buf.readableBytes() / REGION_SIZE) {
+			throw new IllegalArgumentException("Invalid region count " + length);
+		}
+		var regions = new RegionPos[length];
+		var subRegionDigests = new long[length][RegionDigests.SUB_REGIONS_PER_REGION];
+		for (int i = 0; i < length; i++) {
+			regions[i] = new RegionPos(buf.readShort(), buf.readShort());
+			for (int j = 0; j < RegionDigests.SUB_REGIONS_PER_REGION; j++) {
+				subRegionDigests[i][j] = buf.readLong();
+			}
+		}
+		return new ClientboundSubRegionDigestsPacket(dimension, regions, subRegionDigests);
+	}
+}
@@ -1,14 +1,11 @@
 package gjum.minecraft.mapsync.common.net.packet;
 
-import gjum.minecraft.mapsync.common.data.CatchupChunk;
+import gjum.minecraft.mapsync.common.data.CatchupChunks;
 import gjum.minecraft.mapsync.common.net.Packet;
 import io.netty.buffer.ByteBuf;
-import net.minecraft.resources.ResourceKey;
-import net.minecraft.world.level.Level;
+import net.minecraft.world.level.ChunkPos;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.List;
-
 /**
  * This is the final stage in the synchronisation process, sent in response to
  * a received {@link ClientboundChunkTimestampsResponsePacket}. Here you list
@@ -18,34 +15,22 @@ import java.util.List;
 public class ServerboundCatchupRequestPacket implements Packet {
 	public static final int PACKET_ID = 6;
 
-	/**
-	 * Chunks must all be in the same dimension
-	 */
-	public final List<CatchupChunk> chunks;
+	public final @NotNull CatchupChunks chunks;
 
-	/**
-	 * Chunks must all be in the same dimension
-	 */
-	public ServerboundCatchupRequestPacket(@NotNull List<CatchupChunk> chunks) {
-		if (chunks.isEmpty()) throw new Error("Chunks list must not be empty");
-		ResourceKey<Level> dim = null;
-		for (CatchupChunk chunk : chunks) {
-			if (dim == null) dim = chunk.dimension();
-			else if (!dim.equals(chunk.dimension())) {
-				throw new Error("Chunks must all be in the same dimension " + dim + " but this one was " + chunk.dimension());
-			}
-		}
+	public ServerboundCatchupRequestPacket(@NotNull CatchupChunks chunks) {
+		if (chunks.size() == 0) throw new Error("Chunks list must not be empty");
 		this.chunks = chunks;
 	}
 
 	@Override
 	public void write(@NotNull ByteBuf buf) {
-		Packet.writeResourceKey(buf, chunks.get(0).dimension());
+		Packet.writeResourceKey(buf, chunks.dimension);
 		buf.writeInt(chunks.size());
-		for (CatchupChunk chunk : chunks) {
-			buf.writeInt(chunk.chunk_x());
-			buf.writeInt(chunk.chunk_z());
-			buf.writeLong(chunk.timestamp());
+		for (int i = 0; i < chunks.size(); i++) {
+			final long chunkPos = chunks.chunkPos(i);
+			buf.writeInt(ChunkPos.getX(chunkPos));
+			buf.writeInt(ChunkPos.getZ(chunkPos));
+			buf.writeLong(chunks.timestamp(i));
 		}
 	}
 }
@@ -0,0 +1,47 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * You send this in response to a {@link ClientboundSubRegionDigestsPacket},
+ * listing the sub-regions whose digest differs from yours. You should expect
+ * a {@link ClientboundChunkDigestsPacket}.
+ */
+public class ServerboundChunkDigestsRequestPacket implements Packet {
+	public static final int PACKET_ID = 14;
+
+	/**
+	 * keeps the packet well within the server's frame size limit
+	 */
+	public static final int MAX_REGIONS = 2000;
+
+	private final String dimension;
+	private final List<RegionPos> regions;
+	/**
+	 * per region, bit i is set for sub-region i, see {@link gjum.minecraft.mapsync.common.data.RegionDigests#subRegionIndex}
+	 */
+	private final List<Integer> subRegionMasks;
+
+	public ServerboundChunkDigestsRequestPacket(String dimension, List<RegionPos> regions, List<Integer> subRegionMasks) {
+		if (regions.size() > MAX_REGIONS) throw new Error("Too many regions: " + regions.size());
+		this.dimension = dimension;
+		this.regions = regions;
+		this.subRegionMasks = subRegionMasks;
+	}
+
+	@Override
+	public void write(@NotNull ByteBuf buf) {
+		Packet.writeUtf8String(buf, dimension);
+		buf.writeInt(regions.size());
+		for (int i = 0; i < regions.size(); i++) {
+			buf.writeShort(regions.get(i).x());
+			buf.writeShort(regions.get(i).z());
+			buf.writeShort(subRegionMasks.get(i));
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Several {@link ChunkTilePacket}s of one dimension in one frame,
+ * with the dimension and data version only written once.
+ * Requires {@link gjum.minecraft.mapsync.common.net.Capabilities#TILE_BATCH}.
+ */
+public class ServerboundChunkTileBatchPacket implements Packet {
+	public static final int PACKET_ID = 10;
+
+	/**
+	 * dimension, data version, tile count
+	 */
+	private static final int MAX_HEADER_SIZE = 256;
+	/**
+	 * x, z, timestamp, hash, columns length
+	 */
+	private static final int TILE_HEADER_SIZE = 4 + 4 + 8 + 20 + 4;
+
+	private final ResourceKey<Level> dimension;
+	private final int dataVersion;
+	public final List<ChunkTile> chunkTiles;
+
+	/**
+	 * @param chunkTiles all in that dimension, and all with {@link ChunkTile#encodedColumns()}
+	 */
+	public ServerboundChunkTileBatchPacket(@NotNull ResourceKey<Level> dimension, int dataVersion, @NotNull List<ChunkTile> chunkTiles) {
+		this.dimension = dimension;
+		this.dataVersion = dataVersion;
+		this.chunkTiles = chunkTiles;
+	}
+
+	/**
+	 * how many bytes a tile adds to the packet
+	 */
+	public static int getEncodedSize(@NotNull ChunkTile chunkTile, int dataVersion) {
+		return TILE_HEADER_SIZE + chunkTile.encodedColumns().get(dataVersion).length;
+	}
+
+	@Override
+	public void write(@NotNull ByteBuf buf) {
+		writeHeader(buf);
+		for (ChunkTile chunkTile : chunkTiles) {
+			writeTileHeader(chunkTile, buf);
+			buf.writeBytes(chunkTile.encodedColumns().get(dataVersion));
+		}
+	}
+
+	/**
+	 * The headers are written into `buf` back to back, and each tile's columns are added
+	 * after its header without copying them.
+	 */
+	@Override
+	public @NotNull ByteBuf writeZeroCopy(@NotNull ByteBuf buf) {
+		// all headers usually fit without growing buf
+		buf.ensureWritable(MAX_HEADER_SIZE + chunkTiles.size() * TILE_HEADER_SIZE);
+		var composite = buf.alloc().compositeBuffer(1 + 2 * chunkTiles.size());
+		writeHeader(buf);
+		for (ChunkTile chunkTile : chunkTiles) {
+			writeTileHeader(chunkTile, buf);
+			composite.addComponent(true, buf.retainedSlice(buf.readerIndex(), buf.readableBytes()));
+			buf.readerIndex(buf.writerIndex());
+			composite.addComponent(true, chunkTile.encodedColumns().buffer(dataVersion));
+		}
+		buf.release();
+		return composite;
+	}
+
+	private void writeHeader(ByteBuf buf) {
+		Packet.writeResourceKey(buf, dimension);
+		buf.writeShort(dataVersion);
+		buf.writeShort(chunkTiles.size());
+	}
+
+	private void writeTileHeader(ChunkTile chunkTile, ByteBuf buf) {
+		buf.writeInt(chunkTile.x());
+		buf.writeInt(chunkTile.z());
+		buf.writeLong(chunkTile.timestamp());
+		buf.writeBytes(chunkTile.dataHash());
+		buf.writeInt(chunkTile.encodedColumns().get(dataVersion).length);
+	}
+}
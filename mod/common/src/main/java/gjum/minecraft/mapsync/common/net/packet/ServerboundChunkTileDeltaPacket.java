@@ -0,0 +1,50 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.data.ChunkTile;
+import gjum.minecraft.mapsync.common.data.PackedColumns;
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.BitSet;
+
+/**
+ * Like {@link ChunkTilePacket}, but only carries the columns that differ from
+ * a tile the server already has, identified by its hash.
+ * The server rebuilds the full tile from that and stores and relays it as usual.
+ * Requires {@link gjum.minecraft.mapsync.common.net.Capabilities#TILE_DELTA}.
+ */
+public class ServerboundChunkTileDeltaPacket implements Packet {
+	public static final int PACKET_ID = 9;
+
+	public final ChunkTile chunkTile;
+	private final byte[] baseHash;
+	private final BitSet changedColumns;
+
+	/**
+	 * @param chunkTile      must have {@link ChunkTile#encodedColumns()}
+	 * @param changedColumns indices of the columns that differ from the base tile
+	 */
+	public ServerboundChunkTileDeltaPacket(@NotNull ChunkTile chunkTile, byte @NotNull [] baseHash, @NotNull BitSet changedColumns) {
+		if (chunkTile.encodedColumns() == null) {
+			throw new IllegalArgumentException("Can't send delta of received tile " + chunkTile.chunkPos());
+		}
+		this.chunkTile = chunkTile;
+		this.baseHash = baseHash;
+		this.changedColumns = changedColumns;
+	}
+
+	@Override
+	public void write(@NotNull ByteBuf buf) {
+		chunkTile.writeMetadata(buf, PackedColumns.DATA_VERSION);
+		buf.writeBytes(baseHash);
+		final long[] words = changedColumns.toLongArray();
+		for (int i = 0; i < PackedColumns.NUM_COLUMNS / 64; i++) {
+			buf.writeLong(i < words.length ? words[i] : 0);
+		}
+		final var encodedColumns = chunkTile.encodedColumns();
+		for (int column = changedColumns.nextSetBit(0); column >= 0; column = changedColumns.nextSetBit(column + 1)) {
+			encodedColumns.writeColumn(column, buf);
+		}
+	}
+}
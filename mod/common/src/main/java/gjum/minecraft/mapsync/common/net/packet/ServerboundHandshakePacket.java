@@ -1,5 +1,6 @@
 package gjum.minecraft.mapsync.common.net.packet;
 
+import gjum.minecraft.mapsync.common.net.Capabilities;
 import gjum.minecraft.mapsync.common.net.Packet;
 import io.netty.buffer.ByteBuf;
 import org.jetbrains.annotations.NotNull;
@@ -15,12 +16,17 @@ public class ServerboundHandshakePacket implements Packet {
 	public final @NotNull String username;
 	public final @NotNull String gameAddress;
 	public final @NotNull String world;
+	/**
+	 * see {@link Capabilities}
+	 */
+	public final int capabilities;
 
-	public ServerboundHandshakePacket(@NotNull String modVersion, @NotNull String username, @NotNull String gameAddress, @NotNull String world) {
+	public ServerboundHandshakePacket(@NotNull String modVersion, @NotNull String username, @NotNull String gameAddress, @NotNull String world, int capabilities) {
 		this.modVersion = modVersion;
 		this.username = username;
 		this.gameAddress = gameAddress;
 		this.world = world;
+		this.capabilities = capabilities;
 	}
 
 	@Override
@@ -29,6 +35,7 @@ public class ServerboundHandshakePacket implements Packet {
 		Packet.writeUtf8String(out, username);
 		Packet.writeUtf8String(out, gameAddress);
 		Packet.writeUtf8String(out, world);
+		out.writeInt(capabilities);
 	}
 
 	@Override
@@ -37,6 +44,7 @@ public class ServerboundHandshakePacket implements Packet {
 				"version='" + modVersion + '\'' +
 				" username='" + username + '\'' +
 				" gameAddress='" + gameAddress + '\'' +
+				" capabilities=" + capabilities +
 				'}';
 	}
 }
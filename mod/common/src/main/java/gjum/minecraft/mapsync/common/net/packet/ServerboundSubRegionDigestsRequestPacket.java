@@ -0,0 +1,41 @@
+package gjum.minecraft.mapsync.common.net.packet;
+
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import gjum.minecraft.mapsync.common.net.Packet;
+import io.netty.buffer.ByteBuf;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * You send this in response to a {@link ClientboundRegionDigestsPacket},
+ * listing the regions whose digest differs from yours. You should expect
+ * a {@link ClientboundSubRegionDigestsPacket}.
+ */
+public class ServerboundSubRegionDigestsRequestPacket implements Packet {
+	public static final int PACKET_ID = 12;
+
+	/**
+	 * keeps the packet well within the server's frame size limit
+	 */
+	public static final int MAX_REGIONS = 2000;
+
+	private final String dimension;
+	private final List<RegionPos> regions;
+
+	public ServerboundSubRegionDigestsRequestPacket(String dimension, List<RegionPos> regions) {
+		if (regions.size() > MAX_REGIONS) throw new Error("Too many regions: " + regions.size());
+		this.dimension = dimension;
+		this.regions = regions;
+	}
+
+	@Override
+	public void write(@NotNull ByteBuf buf) {
+		Packet.writeUtf8String(buf, dimension);
+		buf.writeInt(regions.size());
+		for (var region : regions) {
+			buf.writeShort(region.x());
+			buf.writeShort(region.z());
+		}
+	}
+}
@@ -113,4 +113,18 @@ public final class Hasher {
 		}
 		return new Hasher(messageDigest);
 	}
+
+	/**
+	 * Every implementation of Java is required to support SHA-256 too.
+	 */
+	public static @NotNull Hasher sha256() {
+		final MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (final NoSuchAlgorithmException thrown) {
+			throw new IllegalStateException("This should never happen!", thrown);
+		}
+		return new Hasher(messageDigest);
+	}
 }
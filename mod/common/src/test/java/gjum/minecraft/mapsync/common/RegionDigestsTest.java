@@ -0,0 +1,105 @@
+package gjum.minecraft.mapsync.common;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import gjum.minecraft.mapsync.common.data.RegionDigests;
+import gjum.minecraft.mapsync.common.data.RegionPos;
+import gjum.minecraft.mapsync.common.net.ServerKnownChunkHashes;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * {@link RegionDigests} and {@link ChunkDigestIndex} against the test vectors in the sync server's
+ * digests.vectors.json, which its digests.test.ts checks too,
+ * so a change to the formulas on only one side fails there.
+ */
+class RegionDigestsTest {
+	private static JsonObject vectors;
+
+	@BeforeAll
+	static void readVectors() throws IOException {
+		try (Reader reader = Files.newBufferedReader(Path.of(System.getProperty("mapsync.digestVectors")))) {
+			vectors = JsonParser.parseReader(reader).getAsJsonObject();
+		}
+	}
+
+	@Test
+	void fingerprint() {
+		for (JsonElement element : vectors.getAsJsonArray("fingerprints")) {
+			final var vector = element.getAsJsonObject();
+			final byte[] hash = HexFormat.of().parseHex(vector.get("hash").getAsString());
+			assertEquals(vector.get("fingerprint").getAsString(), hex(ServerKnownChunkHashes.fingerprint(hash)));
+		}
+	}
+
+	@Test
+	void subRegionIndex() {
+		for (JsonElement element : vectors.getAsJsonArray("subRegions")) {
+			final var vector = element.getAsJsonObject();
+			assertEquals(vector.get("subRegion").getAsInt(), RegionDigests.subRegionIndex(vector.get("chunkIndex").getAsInt()));
+		}
+	}
+
+	@Test
+	void leaf() {
+		for (JsonElement element : vectors.getAsJsonArray("leaves")) {
+			final var vector = element.getAsJsonObject();
+			final long fingerprint = parseHex(vector.get("fingerprint").getAsString());
+			assertEquals(vector.get("leaf").getAsString(), hex(RegionDigests.leaf(vector.get("chunkIndex").getAsInt(), fingerprint)));
+		}
+	}
+
+	/**
+	 * half the chunks are set before the digests are first computed and half after,
+	 * so both the full computation and the incremental update are checked
+	 */
+	@Test
+	void regionDigest(@TempDir Path dir) throws IOException {
+		final var region = vectors.getAsJsonObject("region");
+		final var regionPos = new RegionPos(region.get("regionX").getAsInt(), region.get("regionZ").getAsInt());
+		final var chunks = region.getAsJsonArray("chunks");
+		final var database = new ChunkMetaDatabase(dir.resolve("digests.chunkmeta"));
+		try {
+			final var index = new ChunkDigestIndex(database);
+			for (int i = 0; i < chunks.size(); i++) {
+				if (i == chunks.size() / 2) index.getSubRegionDigests(regionPos);
+				final var chunk = chunks.get(i).getAsJsonObject();
+				final int chunkX = chunk.get("chunkX").getAsInt();
+				final int chunkZ = chunk.get("chunkZ").getAsInt();
+				assertEquals(regionPos, RegionPos.forChunkPos(chunkX, chunkZ));
+				final int chunkIndex = RegionPos.chunkIndex(chunkX, chunkZ);
+				assertEquals(chunk.get("chunkIndex").getAsInt(), chunkIndex);
+				final byte[] hash = HexFormat.of().parseHex(chunk.get("hash").getAsString());
+				index.setFingerprint(regionPos, chunkIndex, ServerKnownChunkHashes.fingerprint(hash));
+			}
+
+			final long[] subRegionDigests = index.getSubRegionDigests(regionPos);
+			final var expected = region.getAsJsonArray("subRegionDigests");
+			assertEquals(expected.size(), subRegionDigests.length);
+			for (int i = 0; i < subRegionDigests.length; i++) {
+				assertEquals(expected.get(i).getAsString(), hex(subRegionDigests[i]), "sub-region " + i);
+			}
+			assertEquals(region.get("digest").getAsString(), hex(index.getRegionDigest(regionPos)));
+		} finally {
+			database.close();
+		}
+	}
+
+	private static long parseHex(String value) {
+		return Long.parseUnsignedLong(value.substring(2), 16);
+	}
+
+	private static String hex(long value) {
+		return String.format("0x%016x", value);
+	}
+}
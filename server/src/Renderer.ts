@@ -1,13 +1,21 @@
 import { spawn } from "child_process";
 import { promisify } from "util";
 import * as database from "./database";
+import { TILE_VERSION_PACKED, decodeColumns } from "./tiles";
 
 export async function renderTile(
     dimension: string,
     tileX: number,
     tileZ: number,
 ) {
-    const allChunks = await database.getRegionChunks(dimension, tileX, tileZ);
+    // the renderer only reads version 1
+    const allChunks = (
+        await database.getRegionChunks(dimension, tileX, tileZ)
+    ).flatMap((chunk) => {
+        const columns = decodeColumns(chunk.version, chunk.data);
+        if (!columns) return [];
+        return [{ ...chunk, data: Buffer.concat(columns) }];
+    });
 
     const proc = spawn(
         "../render/target/release/civmap-render",
@@ -27,7 +35,7 @@ export async function renderTile(
     for (const chunk of allChunks) {
         chunkHeaderBuf.writeInt32BE(chunk.chunk_x, 0);
         chunkHeaderBuf.writeInt32BE(chunk.chunk_z, 4);
-        chunkHeaderBuf.writeUInt16BE(chunk.version, 8);
+        chunkHeaderBuf.writeUInt16BE(TILE_VERSION_PACKED, 8);
         await write(chunkHeaderBuf);
         await write(chunk.data);
     }
@@ -6,3 +6,48 @@ export const SUPPORTED_VERSIONS = new Set([
 // SHA1 produces 160-bit (20-byte) hashes
 // https://en.wikipedia.org/wiki/SHA-1
 export const SHA1_HASH_LENGTH = 20;
+
+/** Optional protocol features, as bit flags. Clients list the ones they support
+ * in their handshake, and we reply with the subset we accept. */
+export const CAPABILITY_TILE_DEFLATE = 1;
+
+export const CAPABILITY_TILE_PALETTE = 2;
+
+/** clients may send ChunkTileDelta packets, and understand ChunkTileRejected */
+export const CAPABILITY_TILE_DELTA = 4;
+
+/** clients may send ChunkTileBatch packets */
+export const CAPABILITY_TILE_BATCH = 8;
+
+/** aes-128-ctr instead of aes-128-cfb8 */
+export const CAPABILITY_ENCRYPTION_CTR = 16;
+
+/** EncryptionRequest carries the storage epoch, see database.getStorageEpoch() */
+export const CAPABILITY_STORAGE_EPOCH = 32;
+
+/** clients compare region digests instead of region timestamps, see digests.ts */
+export const CAPABILITY_REGION_DIGESTS = 64;
+
+/** TILE_DEFLATE isn't accepted: we can't decode version 2 tiles, see tiles.decodeColumns() */
+export const SERVER_CAPABILITIES =
+    CAPABILITY_TILE_PALETTE |
+    CAPABILITY_TILE_DELTA |
+    CAPABILITY_TILE_BATCH |
+    CAPABILITY_ENCRYPTION_CTR |
+    CAPABILITY_STORAGE_EPOCH |
+    CAPABILITY_REGION_DIGESTS;
+
+/** Which capability a client needs to be able to decode chunk data of the given version.
+ * undefined for versions we don't know, which no client is assumed to decode. */
+export function getTileVersionCapability(version: number): number | undefined {
+    switch (version) {
+        case 1:
+            return 0;
+        case 2:
+            return CAPABILITY_TILE_DEFLATE;
+        case 3:
+            return CAPABILITY_TILE_PALETTE;
+        default:
+            return undefined;
+    }
+}
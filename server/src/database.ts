@@ -19,6 +19,10 @@ export interface Database {
         ts: number;
         hash: Buffer;
     };
+    server_meta: {
+        key: string;
+        value: string;
+    };
 }
 
 export function get() {
@@ -68,6 +72,39 @@ export async function setup() {
             (fk) => fk.onUpdate("no action").onDelete("no action"),
         )
         .execute();
+    await get()
+        .schema.createTable("server_meta")
+        .ifNotExists()
+        .addColumn("key", "text", (col) => col.notNull().primaryKey())
+        .addColumn("value", "text", (col) => col.notNull())
+        .execute();
+}
+
+let storageEpoch: number | null = null;
+
+/**
+ * Identifies this database: when it is wiped, a new epoch is created, so
+ * clients know to forget which chunks they think we already have.
+ * It's the time the database was first used by this version.
+ */
+export async function getStorageEpoch() {
+    if (storageEpoch !== null) return storageEpoch;
+    const row = await get()
+        .selectFrom("server_meta")
+        .select("value")
+        .where("key", "=", "storage_epoch")
+        .executeTakeFirst();
+    if (row) {
+        storageEpoch = Number(row.value);
+    } else {
+        storageEpoch = Date.now();
+        await get()
+            .insertInto("server_meta")
+            .values({ key: "storage_epoch", value: String(storageEpoch) })
+            .onConflict((oc) => oc.column("key").doNothing())
+            .execute();
+    }
+    return storageEpoch;
 }
 
 /**
@@ -128,6 +165,42 @@ export async function getChunkTimestamps(dimension: string, regions: Pos2D[]) {
         .execute();
 }
 
+export interface ChunkHash {
+    chunk_x: number;
+    chunk_z: number;
+    ts: number;
+    hash: Buffer;
+}
+
+/**
+ * The hash and timestamp of the newest data of each chunk in the world,
+ * or only in the given region.
+ */
+export async function getLatestChunkHashes(
+    dimension: string,
+    regionX?: number,
+    regionZ?: number,
+): Promise<ChunkHash[]> {
+    let query = get()
+        .selectFrom("player_chunk")
+        .select([
+            "chunk_x",
+            "chunk_z",
+            (eb) => eb.fn.max<number>("ts").as("ts"),
+            // sqlite takes the bare column from the row with the max(ts)
+            "hash",
+        ])
+        .where("world", "=", dimension);
+    if (regionX !== undefined && regionZ !== undefined) {
+        query = query
+            .where("chunk_x", ">=", regionX * 32)
+            .where("chunk_x", "<", regionX * 32 + 32)
+            .where("chunk_z", ">=", regionZ * 32)
+            .where("chunk_z", "<", regionZ * 32 + 32);
+    }
+    return query.groupBy(["chunk_x", "chunk_z"]).execute();
+}
+
 /**
  * Retrieves the data for a given chunk's world, x, z, and timestamp.
  *
@@ -156,6 +229,17 @@ export async function getChunkData(
         .executeTakeFirst();
 }
 
+/**
+ * Retrieves chunk data by its hash, regardless of which chunk it belongs to.
+ */
+export async function getChunkDataByHash(hash: Buffer) {
+    return get()
+        .selectFrom("chunk_data")
+        .select(["version", "data"])
+        .where("hash", "=", hash)
+        .executeTakeFirst();
+}
+
 /**
  * Stores a player's chunk data.
  */
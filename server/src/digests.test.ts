@@ -0,0 +1,53 @@
+import test from "node:test";
+import assert from "node:assert/strict";
+import * as digests from "./digests";
+import vectors from "./digests.vectors.json";
+
+// the mod's RegionDigestsTest checks the same vectors,
+// so a change to the formulas on only one side fails there
+
+function hex(value: bigint) {
+    return "0x" + value.toString(16).padStart(16, "0");
+}
+
+test("fingerprint", () => {
+    for (const { hash, fingerprint } of vectors.fingerprints) {
+        assert.equal(
+            hex(digests.fingerprint(Buffer.from(hash, "hex"))),
+            fingerprint,
+        );
+    }
+});
+
+test("subRegionIndex", () => {
+    for (const { chunkIndex, subRegion } of vectors.subRegions) {
+        assert.equal(digests.subRegionIndex(chunkIndex), subRegion);
+    }
+});
+
+test("leaf", () => {
+    for (const { chunkIndex, fingerprint, leaf } of vectors.leaves) {
+        assert.equal(hex(digests.leaf(chunkIndex, BigInt(fingerprint))), leaf);
+    }
+});
+
+test("region digest", () => {
+    const { regionX, regionZ, chunks } = vectors.region;
+    for (const { chunkX, chunkZ, chunkIndex } of chunks) {
+        assert.equal(digests.chunkIndex(chunkX, chunkZ), chunkIndex);
+    }
+    const region = digests.computeRegion(
+        regionX,
+        regionZ,
+        chunks.map(({ chunkX, chunkZ, hash }) => ({
+            chunk_x: chunkX,
+            chunk_z: chunkZ,
+            hash: Buffer.from(hash, "hex"),
+        })),
+    );
+    assert.deepEqual(
+        Array.from(region.subRegionDigests, hex),
+        vectors.region.subRegionDigests,
+    );
+    assert.equal(hex(region.digest), vectors.region.digest);
+});
@@ -0,0 +1,169 @@
+import * as database from "./database";
+
+/**
+ * Merkle-style digests of the newest chunk data the server has, so clients can
+ * find the chunks that differ from theirs without listing every chunk.
+ * Each region of 32x32 chunks is split into 4x4 sub-regions of 8x8 chunks.
+ * A chunk's leaf mixes its position with the fingerprint of its data hash;
+ * a sub-region's digest is the XOR of its chunks' leaves, and a region's
+ * digest the XOR of its sub-regions' digests.
+ * Must match the mod's RegionDigests; both are checked against the test
+ * vectors in digests.vectors.json.
+ */
+
+export const SUB_REGIONS_PER_REGION = 16;
+
+const MASK_64 = (1n << 64n) - 1n;
+const GOLDEN_GAMMA = 0x9e3779b97f4a7c15n;
+
+/** The first 8 bytes of the (SHA-1) hash, never 0. Same as the mod's ServerKnownChunkHashes. */
+export function fingerprint(hash: Buffer): bigint {
+    const fp = hash.readBigUInt64BE(0);
+    return fp === 0n ? 1n : fp;
+}
+
+/** splitmix64's finalizer */
+function mix(z: bigint): bigint {
+    z = ((z ^ (z >> 30n)) * 0xbf58476d1ce4e5b9n) & MASK_64;
+    z = ((z ^ (z >> 27n)) * 0x94d049bb133111ebn) & MASK_64;
+    return z ^ (z >> 31n);
+}
+
+/** index of the chunk within its region, same as the mod's RegionPos.chunkIndex */
+export function chunkIndex(chunkX: number, chunkZ: number) {
+    return (chunkX & 31) + 32 * (chunkZ & 31);
+}
+
+export function subRegionIndex(chunkIndex: number) {
+    return ((chunkIndex & 31) >> 3) + 4 * (chunkIndex >> 8);
+}
+
+export function leaf(chunkIndex: number, fingerprint: bigint): bigint {
+    if (fingerprint === 0n) return 0n;
+    return mix((fingerprint + BigInt(chunkIndex) * GOLDEN_GAMMA) & MASK_64);
+}
+
+export interface RegionDigests {
+    readonly regionX: number;
+    readonly regionZ: number;
+    readonly digest: bigint;
+    readonly subRegionDigests: BigUint64Array;
+}
+
+function regionKey(regionX: number, regionZ: number) {
+    return regionX + "," + regionZ;
+}
+
+interface WorldDigests {
+    regions: Map<string, RegionDigests>;
+    /** changed since their digests were computed */
+    dirtyRegions: Map<string, { regionX: number; regionZ: number }>;
+}
+
+const worlds = new Map<string, Promise<WorldDigests>>();
+
+export function computeRegion(
+    regionX: number,
+    regionZ: number,
+    chunks: Iterable<{ chunk_x: number; chunk_z: number; hash: Buffer }>,
+): RegionDigests {
+    const subRegionDigests = new BigUint64Array(SUB_REGIONS_PER_REGION);
+    for (const chunk of chunks) {
+        const index = chunkIndex(chunk.chunk_x, chunk.chunk_z);
+        subRegionDigests[subRegionIndex(index)] ^= leaf(
+            index,
+            fingerprint(chunk.hash),
+        );
+    }
+    let digest = 0n;
+    for (const subRegionDigest of subRegionDigests) digest ^= subRegionDigest;
+    return { regionX, regionZ, digest, subRegionDigests };
+}
+
+async function buildWorld(world: string): Promise<WorldDigests> {
+    const chunksByRegion = new Map<
+        string,
+        { regionX: number; regionZ: number; chunks: database.ChunkHash[] }
+    >();
+    for (const chunk of await database.getLatestChunkHashes(world)) {
+        const regionX = chunk.chunk_x >> 5;
+        const regionZ = chunk.chunk_z >> 5;
+        const key = regionKey(regionX, regionZ);
+        let region = chunksByRegion.get(key);
+        if (!region) {
+            region = { regionX, regionZ, chunks: [] };
+            chunksByRegion.set(key, region);
+        }
+        region.chunks.push(chunk);
+    }
+    const regions = new Map<string, RegionDigests>();
+    for (const [key, { regionX, regionZ, chunks }] of chunksByRegion) {
+        regions.set(key, computeRegion(regionX, regionZ, chunks));
+    }
+    return { regions, dirtyRegions: new Map() };
+}
+
+async function getWorld(world: string) {
+    let worldDigests = worlds.get(world);
+    if (!worldDigests) {
+        worldDigests = buildWorld(world);
+        worlds.set(world, worldDigests);
+        // don't keep a failed build around
+        worldDigests.catch(() => worlds.delete(world));
+    }
+    const digests = await worldDigests;
+    for (const [key, { regionX, regionZ }] of digests.dirtyRegions) {
+        digests.dirtyRegions.delete(key);
+        const chunks = await database.getLatestChunkHashes(
+            world,
+            regionX,
+            regionZ,
+        );
+        if (chunks.length) {
+            digests.regions.set(key, computeRegion(regionX, regionZ, chunks));
+        } else {
+            digests.regions.delete(key);
+        }
+    }
+    return digests;
+}
+
+/** Call after storing a chunk; its region is recomputed when next needed. */
+export async function invalidateChunk(
+    world: string,
+    chunkX: number,
+    chunkZ: number,
+) {
+    const worldDigests = worlds.get(world);
+    if (!worldDigests) return; // built with this chunk when first needed
+    const regionX = chunkX >> 5;
+    const regionZ = chunkZ >> 5;
+    (await worldDigests).dirtyRegions.set(regionKey(regionX, regionZ), {
+        regionX,
+        regionZ,
+    });
+}
+
+export async function getRegionDigests(world: string) {
+    return Array.from((await getWorld(world)).regions.values());
+}
+
+export async function getRegionDigestsAt(
+    world: string,
+    regions: { x: number; z: number }[],
+) {
+    const digests = await getWorld(world);
+    const result: RegionDigests[] = [];
+    for (const { x, z } of regions) {
+        const region = digests.regions.get(regionKey(x, z));
+        result.push(
+            region ?? {
+                regionX: x,
+                regionZ: z,
+                digest: 0n,
+                subRegionDigests: new BigUint64Array(SUB_REGIONS_PER_REGION),
+            },
+        );
+    }
+    return result;
+}
@@ -1,11 +1,30 @@
 import "./cli";
+import crypto from "crypto";
 import * as database from "./database";
+import * as digests from "./digests";
 import * as metadata from "./metadata";
 import { ClientPacket } from "./protocol";
 import { CatchupRequestPacket } from "./protocol/CatchupRequestPacket";
 import { ChunkTilePacket } from "./protocol/ChunkTilePacket";
 import { TcpClient, TcpServer } from "./server";
 import { RegionCatchupPacket } from "./protocol/RegionCatchupPacket";
+import { ChunkTileDeltaPacket } from "./protocol/ChunkTileDeltaPacket";
+import { ChunkTileBatchPacket } from "./protocol/ChunkTileBatchPacket";
+import {
+    TILE_VERSION_PACKED,
+    canDecodeColumns,
+    decodeColumns,
+    toPackedData,
+} from "./tiles";
+import {
+    CAPABILITY_REGION_DIGESTS,
+    CAPABILITY_TILE_DELTA,
+} from "./constants";
+import { SubRegionDigestsRequestPacket } from "./protocol/SubRegionDigestsRequestPacket";
+import { ChunkDigestsRequestPacket } from "./protocol/ChunkDigestsRequestPacket";
+import { RegionDigestsPacket } from "./protocol/RegionDigestsPacket";
+import { SubRegionDigestsPacket } from "./protocol/SubRegionDigestsPacket";
+import { ChunkDigestsPacket } from "./protocol/ChunkDigestsPacket";
 
 let config: metadata.Config = null!;
 Promise.resolve().then(async () => {
@@ -47,6 +66,21 @@ export class Main {
 
         // TODO check version, mc server, user access
 
+        if (client.hasCapability(CAPABILITY_REGION_DIGESTS)) {
+            const regions = await digests.getRegionDigests(client.world!);
+            for (const part of inParts(
+                regions,
+                RegionDigestsPacket.MAX_REGIONS,
+            )) {
+                client.send({
+                    type: "RegionDigests",
+                    world: client.world!,
+                    regions: part,
+                });
+            }
+            return;
+        }
+
         const timestamps = await database.getRegionTimestamps(client.world!);
         client.send({
             type: "RegionTimestamps",
@@ -66,6 +100,14 @@ export class Main {
                 return this.handleCatchupRequest(client, pkt);
             case "RegionCatchup":
                 return this.handleRegionCatchupPacket(client, pkt);
+            case "ChunkTileDelta":
+                return this.handleChunkTileDeltaPacket(client, pkt);
+            case "ChunkTileBatch":
+                return this.handleChunkTileBatchPacket(client, pkt);
+            case "SubRegionDigestsRequest":
+                return this.handleSubRegionDigestsRequest(client, pkt);
+            case "ChunkDigestsRequest":
+                return this.handleChunkDigestsRequest(client, pkt);
             default:
                 throw new Error(
                     `Unknown packet '${(pkt as any).type}' from client ${
@@ -79,6 +121,15 @@ export class Main {
         if (!client.uuid)
             throw new Error(`${client.name} is not authenticated`);
 
+        // we couldn't relay it to clients that can't decode its version, nor apply deltas to it
+        if (!canDecodeColumns(pkt.data.version)) {
+            client.warn(
+                `Rejecting chunk ${pkt.chunk_x},${pkt.chunk_z} in undecodable version ${pkt.data.version}`,
+            );
+            this.rejectChunkTile(client, pkt.world, pkt.chunk_x, pkt.chunk_z);
+            return;
+        }
+
         // TODO ignore if same chunk hash exists in db
 
         await database
@@ -93,16 +144,88 @@ export class Main {
                 pkt.data.data,
             )
             .catch(console.error);
+        await digests.invalidateChunk(pkt.world, pkt.chunk_x, pkt.chunk_z);
 
         // TODO small timeout, then skip if other client already has it
+        let packedTile: ChunkTilePacket | undefined;
         for (const otherClient of Object.values(this.server.clients)) {
             if (client === otherClient) continue;
-            otherClient.send(pkt);
+            if (otherClient.canReceiveTileVersion(pkt.data.version)) {
+                otherClient.send(pkt);
+                continue;
+            }
+            // converted once, for all clients that need it
+            packedTile ??= toPackedTile(pkt);
+            if (packedTile) otherClient.send(packedTile);
         }
 
         // TODO queue tile render for web map
     }
 
+    async handleChunkTileBatchPacket(
+        client: ProtocolClient,
+        pkt: ChunkTileBatchPacket,
+    ) {
+        // in order, so a delta sent after this batch finds its base tile
+        for (const tile of pkt.tiles) {
+            await this.handleChunkTilePacket(client, tile);
+        }
+    }
+
+    /** Rebuilds the full tile from the base tile, then handles it like any other. */
+    async handleChunkTileDeltaPacket(
+        client: ProtocolClient,
+        pkt: ChunkTileDeltaPacket,
+    ) {
+        if (!client.uuid)
+            throw new Error(`${client.name} is not authenticated`);
+
+        const base = await database.getChunkDataByHash(pkt.baseHash);
+        const columns = base && decodeColumns(base.version, base.data);
+        if (!columns) {
+            client.warn(
+                `Can't apply delta to unknown or undecodable chunk data ${pkt.baseHash.toString(
+                    "hex",
+                )}`,
+            );
+            this.rejectChunkTile(client, pkt.world, pkt.chunk_x, pkt.chunk_z);
+            return;
+        }
+        pkt.changedColumns.forEach((column, i) => {
+            columns[column] = pkt.columns[i];
+        });
+        const data = Buffer.concat(columns);
+
+        const hash = crypto.createHash("sha1").update(data).digest();
+        if (!hash.equals(pkt.hash)) {
+            client.warn(
+                `Chunk delta for ${pkt.chunk_x},${pkt.chunk_z} doesn't match its hash`,
+            );
+            this.rejectChunkTile(client, pkt.world, pkt.chunk_x, pkt.chunk_z);
+            return;
+        }
+
+        return this.handleChunkTilePacket(client, {
+            type: "ChunkTile",
+            world: pkt.world,
+            chunk_x: pkt.chunk_x,
+            chunk_z: pkt.chunk_z,
+            ts: pkt.ts,
+            data: { version: TILE_VERSION_PACKED, hash, data },
+        });
+    }
+
+    /** The client assumes we stored its upload; tell it we didn't, so it sends the full tile again. */
+    rejectChunkTile(
+        client: ProtocolClient,
+        world: string,
+        chunk_x: number,
+        chunk_z: number,
+    ) {
+        if (!client.hasCapability(CAPABILITY_TILE_DELTA)) return;
+        client.send({ type: "ChunkTileRejected", world, chunk_x, chunk_z });
+    }
+
     async handleCatchupRequest(
         client: ProtocolClient,
         pkt: CatchupRequestPacket,
@@ -127,18 +250,24 @@ export class Main {
             if (chunk.ts > req.timestamp) continue; // someone sent a new chunk, which presumably got relayed to the client
             if (chunk.ts < req.timestamp) continue; // the client already has a chunk newer than this
 
-            client.send({
+            const tile: ChunkTilePacket = {
                 type: "ChunkTile",
                 world: pkt.world,
                 chunk_x: req.chunkX,
-                chunk_z: req.chunkX,
+                chunk_z: req.chunkZ,
                 ts: req.timestamp,
                 data: {
                     hash: chunk.hash,
                     data: chunk.data,
                     version: chunk.version,
                 },
-            });
+            };
+            if (client.canReceiveTileVersion(chunk.version)) {
+                client.send(tile);
+                continue;
+            }
+            const packedTile = toPackedTile(tile);
+            if (packedTile) client.send(packedTile);
         }
     }
 
@@ -156,4 +285,79 @@ export class Main {
         if (chunks.length)
             client.send({ type: "Catchup", world: pkt.world, chunks });
     }
+
+    async handleSubRegionDigestsRequest(
+        client: ProtocolClient,
+        pkt: SubRegionDigestsRequestPacket,
+    ) {
+        if (!client.uuid)
+            throw new Error(`${client.name} is not authenticated`);
+
+        const regions = await digests.getRegionDigestsAt(
+            pkt.world,
+            pkt.regions,
+        );
+        for (const part of inParts(
+            regions,
+            SubRegionDigestsPacket.MAX_REGIONS,
+        )) {
+            client.send({
+                type: "SubRegionDigests",
+                world: pkt.world,
+                regions: part,
+            });
+        }
+    }
+
+    async handleChunkDigestsRequest(
+        client: ProtocolClient,
+        pkt: ChunkDigestsRequestPacket,
+    ) {
+        if (!client.uuid)
+            throw new Error(`${client.name} is not authenticated`);
+
+        const chunks: ChunkDigestsPacket["chunks"] = [];
+        for (const region of pkt.regions) {
+            const regionChunks = await database.getLatestChunkHashes(
+                pkt.world,
+                region.x,
+                region.z,
+            );
+            for (const chunk of regionChunks) {
+                const index = digests.chunkIndex(chunk.chunk_x, chunk.chunk_z);
+                const subRegion = digests.subRegionIndex(index);
+                if ((region.subRegionMask & (1 << subRegion)) === 0) continue;
+                chunks.push({
+                    chunkX: chunk.chunk_x,
+                    chunkZ: chunk.chunk_z,
+                    timestamp: chunk.ts,
+                    fingerprint: digests.fingerprint(chunk.hash),
+                });
+            }
+        }
+        for (const part of inParts(chunks, ChunkDigestsPacket.MAX_CHUNKS)) {
+            client.send({
+                type: "ChunkDigests",
+                world: pkt.world,
+                chunks: part,
+            });
+        }
+    }
+}
+
+/** The same tile in version 1, which all clients can decode; undefined if we can't decode it. */
+function toPackedTile(pkt: ChunkTilePacket): ChunkTilePacket | undefined {
+    const data = toPackedData(pkt.data.version, pkt.data.data);
+    if (!data) return undefined;
+    return {
+        ...pkt,
+        data: { version: TILE_VERSION_PACKED, hash: pkt.data.hash, data },
+    };
+}
+
+/** Splits a list that might not fit in one packet. */
+function* inParts<T>(items: T[], maxPerPart: number) {
+    for (let i = 0; i < items.length; i += maxPerPart) {
+        yield items.slice(i, i + maxPerPart);
+    }
 }
@@ -93,6 +93,11 @@ export class BufReader {
         return buf;
     }
 
+    /** for optional fields at the end of a packet */
+    hasRemaining() {
+        return this.off < this.buf.length;
+    }
+
     /** any reads after this will fail */
     readRemainder() {
         return this.readBufLen(this.buf.length - this.off);
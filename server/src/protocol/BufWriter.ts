@@ -61,6 +61,13 @@ export class BufWriter {
         this.off += 8;
     }
 
+    /** for values that don't fit in a double, like hashes */
+    writeBigUInt64(val: bigint) {
+        this.ensureSpace(8);
+        this.buf.writeBigUInt64BE(val, this.off);
+        this.off += 8;
+    }
+
     /** length-prefixed (32 bits), UTF-8 encoded */
     writeString(str: string) {
         const strBuf = Buffer.from(str, "utf8");
@@ -0,0 +1,29 @@
+import { BufWriter } from "./BufWriter";
+
+/** The newest timestamp and data fingerprint of each chunk in the requested sub-regions */
+export interface ChunkDigestsPacket {
+    type: "ChunkDigests";
+    world: string;
+    chunks: Array<{
+        chunkX: number;
+        chunkZ: number;
+        timestamp: number;
+        fingerprint: bigint;
+    }>;
+}
+
+export namespace ChunkDigestsPacket {
+    /** keeps the packet within the client's frame size limit */
+    export const MAX_CHUNKS = 1000;
+
+    export function encode(pkt: ChunkDigestsPacket, writer: BufWriter) {
+        writer.writeString(pkt.world);
+        writer.writeUInt32(pkt.chunks.length);
+        for (const chunk of pkt.chunks) {
+            writer.writeInt32(chunk.chunkX);
+            writer.writeInt32(chunk.chunkZ);
+            writer.writeUInt64(chunk.timestamp);
+            writer.writeBigUInt64(chunk.fingerprint);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import { BufReader } from "./BufReader";
+
+/** The client's digests of these sub-regions differ from ours */
+export interface ChunkDigestsRequestPacket {
+    type: "ChunkDigestsRequest";
+    world: string;
+    regions: Array<{
+        x: number;
+        z: number;
+        /** bit i is set for sub-region i, see digests.subRegionIndex() */
+        subRegionMask: number;
+    }>;
+}
+
+export namespace ChunkDigestsRequestPacket {
+    export function decode(reader: BufReader): ChunkDigestsRequestPacket {
+        const world = reader.readString();
+        const len = reader.readUInt32();
+        const regions: ChunkDigestsRequestPacket["regions"] = [];
+        for (let i = 0; i < len; i++) {
+            regions.push({
+                x: reader.readInt16(),
+                z: reader.readInt16(),
+                subRegionMask: reader.readUInt16(),
+            });
+        }
+        return { type: "ChunkDigestsRequest", world, regions };
+    }
+}
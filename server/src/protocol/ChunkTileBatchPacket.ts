@@ -0,0 +1,33 @@
+import { BufReader } from "./BufReader";
+import { ChunkTilePacket } from "./ChunkTilePacket";
+import { SHA1_HASH_LENGTH } from "../constants";
+
+/** Several chunk tiles of one dimension, sharing the dimension and data version. */
+export interface ChunkTileBatchPacket {
+    type: "ChunkTileBatch";
+    world: string;
+    tiles: ChunkTilePacket[];
+}
+
+export namespace ChunkTileBatchPacket {
+    export function decode(reader: BufReader): ChunkTileBatchPacket {
+        const world = reader.readString();
+        const version = reader.readUInt16();
+        const tiles: ChunkTilePacket[] = new Array(reader.readUInt16());
+        for (let i = 0; i < tiles.length; i++) {
+            tiles[i] = {
+                type: "ChunkTile",
+                world,
+                chunk_x: reader.readInt32(),
+                chunk_z: reader.readInt32(),
+                ts: reader.readUInt64(),
+                data: {
+                    version,
+                    hash: reader.readBufLen(SHA1_HASH_LENGTH),
+                    data: reader.readBufWithLen(),
+                },
+            };
+        }
+        return { type: "ChunkTileBatch", world, tiles };
+    }
+}
@@ -0,0 +1,56 @@
+import { BufReader } from "./BufReader";
+import { SHA1_HASH_LENGTH } from "../constants";
+import { NUM_COLUMNS, splitPackedColumns } from "../tiles";
+
+/** Only the columns of a chunk tile that differ from a tile we already have. */
+export interface ChunkTileDeltaPacket {
+    type: "ChunkTileDelta";
+    world: string;
+    chunk_x: number;
+    chunk_z: number;
+    ts: number;
+    /** always 1 */
+    version: number;
+    /** of the full tile */
+    hash: Buffer;
+    baseHash: Buffer;
+    /** index of each changed column */
+    changedColumns: number[];
+    /** version 1 encoding of each changed column */
+    columns: Buffer[];
+}
+
+export namespace ChunkTileDeltaPacket {
+    export function decode(reader: BufReader): ChunkTileDeltaPacket {
+        const world = reader.readString();
+        const chunk_x = reader.readInt32();
+        const chunk_z = reader.readInt32();
+        const ts = reader.readUInt64();
+        const version = reader.readUInt16();
+        const hash = reader.readBufLen(SHA1_HASH_LENGTH);
+        const baseHash = reader.readBufLen(SHA1_HASH_LENGTH);
+        // four big-endian longs, like java.util.BitSet.toLongArray()
+        const mask = reader.readBufLen(NUM_COLUMNS / 8);
+        const changedColumns: number[] = [];
+        for (let i = 0; i < NUM_COLUMNS; i++) {
+            const byte = mask[(i >> 6) * 8 + 7 - ((i & 63) >> 3)];
+            if (byte & (1 << (i & 7))) changedColumns.push(i);
+        }
+        const columns = splitPackedColumns(
+            reader.readRemainder(),
+            changedColumns.length,
+        );
+        return {
+            type: "ChunkTileDelta",
+            world,
+            chunk_x,
+            chunk_z,
+            ts,
+            version,
+            hash,
+            baseHash,
+            changedColumns,
+            columns,
+        };
+    }
+}
@@ -0,0 +1,19 @@
+import { BufWriter } from "./BufWriter";
+
+/** The client's upload of this chunk wasn't stored, e.g. because the base of
+ * its delta is unknown. Only sent to clients with CAPABILITY_TILE_DELTA;
+ * they forget that we have it, and upload it in full again. */
+export interface ChunkTileRejectedPacket {
+    type: "ChunkTileRejected";
+    world: string;
+    chunk_x: number;
+    chunk_z: number;
+}
+
+export namespace ChunkTileRejectedPacket {
+    export function encode(pkt: ChunkTileRejectedPacket, writer: BufWriter) {
+        writer.writeString(pkt.world);
+        writer.writeInt32(pkt.chunk_x);
+        writer.writeInt32(pkt.chunk_z);
+    }
+}
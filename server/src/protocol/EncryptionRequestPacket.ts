@@ -1,23 +1,46 @@
 import { BufReader } from "./BufReader";
 import { BufWriter } from "./BufWriter";
+import { CAPABILITY_STORAGE_EPOCH } from "../constants";
 
 export interface EncryptionRequestPacket {
     type: "EncryptionRequest";
     publicKey: Buffer;
     verifyToken: Buffer;
+    /** the accepted capabilities; omitted for clients that didn't send any,
+     * because they would try to read it as another packet */
+    capabilities?: number;
+    /** only if CAPABILITY_STORAGE_EPOCH was accepted */
+    storageEpoch?: number;
 }
 
 export namespace EncryptionRequestPacket {
     export function decode(reader: BufReader): EncryptionRequestPacket {
+        const publicKey = reader.readBufWithLen();
+        const verifyToken = reader.readBufWithLen();
+        const capabilities = reader.hasRemaining()
+            ? reader.readUInt32()
+            : undefined;
+        const storageEpoch =
+            capabilities !== undefined &&
+            (capabilities & CAPABILITY_STORAGE_EPOCH) !== 0
+                ? reader.readUInt64()
+                : undefined;
         return {
             type: "EncryptionRequest",
-            publicKey: reader.readBufWithLen(),
-            verifyToken: reader.readBufWithLen(),
+            publicKey,
+            verifyToken,
+            capabilities,
+            storageEpoch,
         };
     }
 
     export function encode(pkt: EncryptionRequestPacket, writer: BufWriter) {
         writer.writeBufWithLen(pkt.publicKey);
         writer.writeBufWithLen(pkt.verifyToken);
+        if (pkt.capabilities !== undefined) {
+            writer.writeUInt32(pkt.capabilities);
+            if ((pkt.capabilities & CAPABILITY_STORAGE_EPOCH) !== 0)
+                writer.writeUInt64(pkt.storageEpoch ?? 0);
+        }
     }
 }
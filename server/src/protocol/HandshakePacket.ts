@@ -7,6 +7,8 @@ export interface HandshakePacket {
     mojangName: string;
     gameAddress: string;
     world: string;
+    /** undefined for clients that don't know about capabilities */
+    capabilities: number | undefined;
 }
 
 export namespace HandshakePacket {
@@ -17,6 +19,9 @@ export namespace HandshakePacket {
             mojangName: reader.readString(),
             gameAddress: reader.readString(),
             world: reader.readString(),
+            capabilities: reader.hasRemaining()
+                ? reader.readUInt32()
+                : undefined,
         };
     }
 }
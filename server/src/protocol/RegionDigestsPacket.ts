@@ -0,0 +1,23 @@
+import { BufWriter } from "./BufWriter";
+
+/** The digest of each region the server has chunks in, see digests.ts */
+export interface RegionDigestsPacket {
+    type: "RegionDigests";
+    world: string;
+    regions: Array<{ regionX: number; regionZ: number; digest: bigint }>;
+}
+
+export namespace RegionDigestsPacket {
+    /** keeps the packet within the client's frame size limit */
+    export const MAX_REGIONS = 2000;
+
+    export function encode(pkt: RegionDigestsPacket, writer: BufWriter) {
+        writer.writeString(pkt.world);
+        writer.writeUInt32(pkt.regions.length);
+        for (const region of pkt.regions) {
+            writer.writeInt16(region.regionX);
+            writer.writeInt16(region.regionZ);
+            writer.writeBigUInt64(region.digest);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import { BufWriter } from "./BufWriter";
+import { SUB_REGIONS_PER_REGION } from "../digests";
+
+export interface SubRegionDigestsPacket {
+    type: "SubRegionDigests";
+    world: string;
+    regions: Array<{
+        regionX: number;
+        regionZ: number;
+        subRegionDigests: BigUint64Array;
+    }>;
+}
+
+export namespace SubRegionDigestsPacket {
+    /** keeps the packet within the client's frame size limit */
+    export const MAX_REGIONS = 200;
+
+    export function encode(pkt: SubRegionDigestsPacket, writer: BufWriter) {
+        writer.writeString(pkt.world);
+        writer.writeUInt32(pkt.regions.length);
+        for (const region of pkt.regions) {
+            writer.writeInt16(region.regionX);
+            writer.writeInt16(region.regionZ);
+            for (let i = 0; i < SUB_REGIONS_PER_REGION; i++) {
+                writer.writeBigUInt64(region.subRegionDigests[i]);
+            }
+        }
+    }
+}
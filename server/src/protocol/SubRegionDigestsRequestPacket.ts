@@ -0,0 +1,24 @@
+import { BufReader } from "./BufReader";
+import { type Pos2D } from "../model";
+
+/** The client's digests of these regions differ from ours */
+export interface SubRegionDigestsRequestPacket {
+    type: "SubRegionDigestsRequest";
+    world: string;
+    regions: Pos2D[];
+}
+
+export namespace SubRegionDigestsRequestPacket {
+    export function decode(reader: BufReader): SubRegionDigestsRequestPacket {
+        const world = reader.readString();
+        const len = reader.readUInt32();
+        const regions: Pos2D[] = [];
+        for (let i = 0; i < len; i++) {
+            regions.push({
+                x: reader.readInt16(),
+                z: reader.readInt16(),
+            });
+        }
+        return { type: "SubRegionDigestsRequest", world, regions };
+    }
+}
@@ -8,19 +8,35 @@ import { CatchupPacket } from "./CatchupPacket";
 import { CatchupRequestPacket } from "./CatchupRequestPacket";
 import { RegionTimestampsPacket } from "./RegionTimestampsPacket";
 import { RegionCatchupPacket } from "./RegionCatchupPacket";
+import { ChunkTileDeltaPacket } from "./ChunkTileDeltaPacket";
+import { ChunkTileBatchPacket } from "./ChunkTileBatchPacket";
+import { RegionDigestsPacket } from "./RegionDigestsPacket";
+import { SubRegionDigestsRequestPacket } from "./SubRegionDigestsRequestPacket";
+import { SubRegionDigestsPacket } from "./SubRegionDigestsPacket";
+import { ChunkDigestsRequestPacket } from "./ChunkDigestsRequestPacket";
+import { ChunkDigestsPacket } from "./ChunkDigestsPacket";
+import { ChunkTileRejectedPacket } from "./ChunkTileRejectedPacket";
 
 export type ClientPacket =
     | ChunkTilePacket
     | EncryptionResponsePacket
     | HandshakePacket
     | CatchupRequestPacket
-    | RegionCatchupPacket;
+    | RegionCatchupPacket
+    | ChunkTileDeltaPacket
+    | ChunkTileBatchPacket
+    | SubRegionDigestsRequestPacket
+    | ChunkDigestsRequestPacket;
 
 export type ServerPacket =
     | ChunkTilePacket
     | EncryptionRequestPacket
     | CatchupPacket
-    | RegionTimestampsPacket;
+    | RegionTimestampsPacket
+    | RegionDigestsPacket
+    | SubRegionDigestsPacket
+    | ChunkDigestsPacket
+    | ChunkTileRejectedPacket;
 
 export const packetIds = [
     "ERROR:pkt0",
@@ -32,6 +48,14 @@ export const packetIds = [
     "CatchupRequest",
     "RegionTimestamps",
     "RegionCatchup",
+    "ChunkTileDelta",
+    "ChunkTileBatch",
+    "RegionDigests",
+    "SubRegionDigestsRequest",
+    "SubRegionDigests",
+    "ChunkDigestsRequest",
+    "ChunkDigests",
+    "ChunkTileRejected",
 ];
 
 export function getPacketId(type: ServerPacket["type"]) {
@@ -53,6 +77,14 @@ export function decodePacket(reader: BufReader): ClientPacket {
             return CatchupRequestPacket.decode(reader);
         case "RegionCatchup":
             return RegionCatchupPacket.decode(reader);
+        case "ChunkTileDelta":
+            return ChunkTileDeltaPacket.decode(reader);
+        case "ChunkTileBatch":
+            return ChunkTileBatchPacket.decode(reader);
+        case "SubRegionDigestsRequest":
+            return SubRegionDigestsRequestPacket.decode(reader);
+        case "ChunkDigestsRequest":
+            return ChunkDigestsRequestPacket.decode(reader);
         default:
             throw new Error(`Unknown packet type ${packetType}`);
     }
@@ -69,6 +101,14 @@ export function encodePacket(pkt: ServerPacket, writer: BufWriter): void {
             return EncryptionRequestPacket.encode(pkt, writer);
         case "RegionTimestamps":
             return RegionTimestampsPacket.encode(pkt, writer);
+        case "RegionDigests":
+            return RegionDigestsPacket.encode(pkt, writer);
+        case "SubRegionDigests":
+            return SubRegionDigestsPacket.encode(pkt, writer);
+        case "ChunkDigests":
+            return ChunkDigestsPacket.encode(pkt, writer);
+        case "ChunkTileRejected":
+            return ChunkTileRejectedPacket.encode(pkt, writer);
         default:
             throw new Error(`Unknown packet type ${(pkt as any).type}`);
     }
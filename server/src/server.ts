@@ -7,7 +7,14 @@ import { BufReader } from "./protocol/BufReader";
 import { BufWriter } from "./protocol/BufWriter";
 import { EncryptionResponsePacket } from "./protocol/EncryptionResponsePacket";
 import { HandshakePacket } from "./protocol/HandshakePacket";
-import { SUPPORTED_VERSIONS } from "./constants";
+import * as database from "./database";
+import {
+    CAPABILITY_ENCRYPTION_CTR,
+    CAPABILITY_STORAGE_EPOCH,
+    SERVER_CAPABILITIES,
+    SUPPORTED_VERSIONS,
+    getTileVersionCapability,
+} from "./constants";
 
 const { PORT = "12312", HOST = "127.0.0.1" } = process.env;
 
@@ -66,6 +73,8 @@ export class TcpClient {
     uuid: string | undefined;
     mcName: string | undefined;
     world: string | undefined;
+    /** accepted during handshake, see SERVER_CAPABILITIES */
+    capabilities = 0;
 
     /** prevent Out of Memory when client sends a large packet */
     maxFrameSize = 2 ** 15;
@@ -179,6 +188,16 @@ export class TcpClient {
         }
     }
 
+    hasCapability(capability: number) {
+        return (this.capabilities & capability) === capability;
+    }
+
+    /** whether the client can decode chunk data of this version */
+    canReceiveTileVersion(version: number) {
+        const capability = getTileVersionCapability(version);
+        return capability !== undefined && this.hasCapability(capability);
+    }
+
     kick(internalReason: string) {
         this.log(`Kicking:`, internalReason);
         this.socket.destroy();
@@ -234,11 +253,20 @@ export class TcpClient {
         this.claimedMojangName = packet.mojangName;
         this.world = packet.world;
         this.verifyToken = crypto.randomBytes(4);
+        if (packet.capabilities !== undefined)
+            this.capabilities = packet.capabilities & SERVER_CAPABILITIES;
 
         await this.sendInternal({
             type: "EncryptionRequest",
             publicKey: this.server.publicKeyBuffer,
             verifyToken: this.verifyToken,
+            capabilities:
+                packet.capabilities !== undefined
+                    ? this.capabilities
+                    : undefined,
+            storageEpoch: this.hasCapability(CAPABILITY_STORAGE_EPOCH)
+                ? await database.getStorageEpoch()
+                : undefined,
         });
     }
 
@@ -282,6 +310,21 @@ export class TcpClient {
             this.mcName = mojangAuth.name;
             this.name += ":" + mojangAuth.name;
 
+            if (this.hasCapability(CAPABILITY_ENCRYPTION_CTR)) {
+                // CTR must not reuse a key stream, so each direction gets its own IV
+                return {
+                    cipher: crypto.createCipheriv(
+                        "aes-128-ctr",
+                        secret,
+                        deriveCtrIv(secret, "s2c"),
+                    ),
+                    decipher: crypto.createDecipheriv(
+                        "aes-128-ctr",
+                        secret,
+                        deriveCtrIv(secret, "c2s"),
+                    ),
+                };
+            }
             return {
                 cipher: crypto.createCipheriv("aes-128-cfb8", secret, secret),
                 decipher: crypto.createDecipheriv(
@@ -311,6 +354,16 @@ export class TcpClient {
     }
 }
 
+/** Same as the mod's ConnectionCiphers. */
+function deriveCtrIv(secret: Buffer, direction: "c2s" | "s2c") {
+    return crypto
+        .createHash("sha256")
+        .update(secret)
+        .update(direction, "ascii")
+        .digest()
+        .subarray(0, 16);
+}
+
 async function fetchHasJoined(args: {
     username: string;
     shaHex: string;
@@ -0,0 +1,110 @@
+import * as zlib from "zlib";
+
+/** Tile data versions; see the mod's PackedColumns, ColumnCompression and PaletteColumns. */
+export const TILE_VERSION_PACKED = 1;
+export const TILE_VERSION_DEFLATE = 2;
+export const TILE_VERSION_PALETTE = 3;
+
+export const NUM_COLUMNS = 256;
+const MAX_WRITTEN_LAYERS = 127;
+
+/**
+ * Decodes tile data into the version 1 encoding of each of its columns.
+ * Returns undefined for versions we can't decode: version 2 is compressed
+ * with a dictionary that the mod builds from the game's block registry.
+ */
+export function decodeColumns(
+    version: number,
+    data: Buffer,
+): Buffer[] | undefined {
+    switch (version) {
+        case TILE_VERSION_PACKED:
+            return splitPackedColumns(data, NUM_COLUMNS);
+        case TILE_VERSION_PALETTE:
+            return decodePaletteColumns(zlib.inflateSync(data));
+        default:
+            return undefined;
+    }
+}
+
+/** Whether decodeColumns() can decode tiles of that version. */
+export function canDecodeColumns(version: number) {
+    return version === TILE_VERSION_PACKED || version === TILE_VERSION_PALETTE;
+}
+
+/**
+ * Converts tile data to version 1, for clients that can't decode its version.
+ * The tile hash stays the same: it is always computed over the version 1 bytes.
+ * Returns undefined for versions we can't decode.
+ */
+export function toPackedData(version: number, data: Buffer) {
+    const columns = decodeColumns(version, data);
+    return columns && Buffer.concat(columns);
+}
+
+/** Splits `data` into `count` columns of version 1 encoding. */
+export function splitPackedColumns(data: Buffer, count: number): Buffer[] {
+    const columns: Buffer[] = [];
+    let off = 0;
+    for (let i = 0; i < count; i++) {
+        const numLayers = data.readUInt8(off + 3);
+        const end = off + 4 + 4 * numLayers;
+        if (end > data.length) throw new Error(`Column ${i} is truncated`);
+        columns.push(data.subarray(off, end));
+        off = end;
+    }
+    if (off !== data.length)
+        throw new Error(`${data.length - off} extra bytes after columns`);
+    return columns;
+}
+
+function decodePaletteColumns(data: Buffer): Buffer[] {
+    let off = 0;
+    function readVarInt() {
+        let value = 0;
+        for (let shift = 0; shift < 35; shift += 7) {
+            const b = data.readUInt8(off++);
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) === 0) return value;
+        }
+        throw new Error("VarInt is too long");
+    }
+    function readPalette() {
+        const size = readVarInt();
+        if (size < 0 || size > NUM_COLUMNS * MAX_WRITTEN_LAYERS)
+            throw new Error(`Invalid palette size ${size}`);
+        const palette: number[] = [];
+        for (let i = 0; i < size; i++) palette.push(readVarInt());
+        return palette;
+    }
+    function lookup(palette: number[], index: number) {
+        if (index < 0 || index >= palette.length)
+            throw new Error(`Palette index ${index} out of range`);
+        return palette[index];
+    }
+
+    const states = readPalette();
+    const biomes = readPalette();
+    const columns: Buffer[] = [];
+    for (let i = 0; i < NUM_COLUMNS; i++) {
+        const biome = lookup(biomes, readVarInt());
+        const light = data.readUInt8(off++);
+        const numLayers = readVarInt();
+        if (numLayers < 0 || numLayers > MAX_WRITTEN_LAYERS)
+            throw new Error(`Invalid layer count ${numLayers}`);
+        const column = Buffer.allocUnsafe(4 + 4 * numLayers);
+        column.writeUInt16BE(biome & 0xffff, 0);
+        column.writeUInt8(light, 2);
+        column.writeUInt8(numLayers, 3);
+        let y = 0;
+        for (let layer = 0; layer < numLayers; layer++) {
+            const state = lookup(states, readVarInt());
+            const zigZag = readVarInt();
+            y -= (zigZag >>> 1) ^ -(zigZag & 1);
+            column.writeInt16BE(y, 4 + 4 * layer);
+            column.writeUInt16BE(state & 0xffff, 6 + 4 * layer);
+        }
+        columns.push(column);
+    }
+    return columns;
+}